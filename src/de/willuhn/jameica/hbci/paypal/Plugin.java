@@ -38,6 +38,39 @@ public class Plugin extends AbstractPlugin
    */
   public final static String META_PARAM_IMPORT_AUTHORIZATIONS = "Authorisierungsbuchungen importieren";
   
+  /**
+   * Meta-Parameter mit der maximalen Anzahl paralleler Abfragen.
+   * Ohne Angabe wird nacheinander abgerufen.
+   */
+  public final static String META_PARAM_PARALLEL_REQUESTS = "Parallele Abfragen";
+  
+  /**
+   * Meta-Parameter, ob die empfangenen Transaktionen zusaetzlich in einem lokalen Journal gespeichert werden.
+   */
+  public final static String META_PARAM_JOURNAL = "Journal speichern";
+  
+  /**
+   * Meta-Parameter, ob beim naechsten Abruf die Umsaetze einmalig aus dem lokalen Journal statt von Paypal uebernommen werden.
+   */
+  public final static String META_PARAM_JOURNAL_REPLAY = "Umstze aus Journal importieren";
+  
+  /**
+   * Meta-Parameter mit dem Zeitpunkt, bis zu dem die Umsaetze vollstaendig abgerufen wurden.
+   * Wird er geleert, ruft die naechste Synchronisierung wieder alle Umsaetze ab.
+   */
+  public final static String META_PARAM_SYNC_CHECKPOINT = "Abruf-Checkpoint";
+  
+  /**
+   * Meta-Parameter mit dem Intervall in Minuten, in dem die Umsaetze im Hintergrund abgerufen werden.
+   * Leer oder 0 deaktiviert den Abruf im Hintergrund.
+   */
+  public final static String META_PARAM_BACKGROUND_INTERVAL = "Abruf im Hintergrund (Minuten)";
+  
+  /**
+   * Meta-Parameter mit der ID des bei Paypal eingerichteten Webhooks. Wird fuer die Pruefung der Signatur benoetigt.
+   */
+  public final static String META_PARAM_WEBHOOK_ID = "Webhook-ID";
+  
   /**
    * Liefert den Support-Status des Kontos.
    * @param konto das zu pruefende Konto.
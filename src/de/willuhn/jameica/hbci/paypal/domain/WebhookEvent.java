@@ -0,0 +1,56 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.domain;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import de.willuhn.jameica.hbci.paypal.transport.TransportService;
+
+/**
+ * Ein per Webhook empfangenes Ereignis.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class WebhookEvent
+{
+  /**
+   * Die ID des Ereignisses.
+   */
+  public String id;
+  
+  /**
+   * Der Typ des Ereignisses, z.Bsp. "PAYMENT.CAPTURE.COMPLETED".
+   */
+  public String event_type;
+  
+  /**
+   * Der Typ der Ressource, z.Bsp. "capture" oder "refund".
+   */
+  public String resource_type;
+  
+  /**
+   * Die Zusammenfassung des Ereignisses.
+   */
+  public String summary;
+  
+  /**
+   * Der Zeitpunkt des Ereignisses.
+   */
+  @JsonFormat(shape=JsonFormat.Shape.STRING,pattern=TransportService.DF_ISO8601)
+  public Date create_time;
+  
+  /**
+   * Die betroffene Ressource.
+   */
+  public WebhookResource resource;
+}
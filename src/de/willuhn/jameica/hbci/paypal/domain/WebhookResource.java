@@ -0,0 +1,67 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.domain;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import de.willuhn.jameica.hbci.paypal.transport.TransportService;
+
+/**
+ * Die Ressource eines Webhook-Ereignisses - eine Zahlung oder eine Rueckzahlung.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class WebhookResource
+{
+  /**
+   * Die ID der Zahlung. Entspricht der Transaktions-ID im Reporting.
+   */
+  public String id;
+  
+  /**
+   * Der Status.
+   */
+  public String status;
+  
+  /**
+   * Der Betrag.
+   */
+  public Money amount;
+  
+  /**
+   * Die Rechnungsnummer.
+   */
+  public String invoice_id;
+  
+  /**
+   * Die vom Haendler vergebene ID.
+   */
+  public String custom_id;
+  
+  /**
+   * Die Nachricht an den Kaeufer.
+   */
+  public String note_to_payer;
+  
+  /**
+   * Der Erstellzeitpunkt.
+   */
+  @JsonFormat(shape=JsonFormat.Shape.STRING,pattern=TransportService.DF_ISO8601)
+  public Date create_time;
+  
+  /**
+   * Der Zeitpunkt der letzten Aenderung.
+   */
+  @JsonFormat(shape=JsonFormat.Shape.STRING,pattern=TransportService.DF_ISO8601)
+  public Date update_time;
+}
@@ -0,0 +1,55 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.domain;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Anfrage zur Pruefung der Signatur eines Webhook-Ereignisses.
+ * Die Werte stammen aus den HTTP-Headern des empfangenen Ereignisses.
+ */
+public class WebhookVerification
+{
+  /**
+   * Header "PAYPAL-AUTH-ALGO".
+   */
+  public String auth_algo;
+  
+  /**
+   * Header "PAYPAL-CERT-URL".
+   */
+  public String cert_url;
+  
+  /**
+   * Header "PAYPAL-TRANSMISSION-ID".
+   */
+  public String transmission_id;
+  
+  /**
+   * Header "PAYPAL-TRANSMISSION-SIG".
+   */
+  public String transmission_sig;
+  
+  /**
+   * Header "PAYPAL-TRANSMISSION-TIME".
+   */
+  public String transmission_time;
+  
+  /**
+   * Die ID des bei Paypal eingerichteten Webhooks.
+   */
+  public String webhook_id;
+  
+  /**
+   * Das empfangene Ereignis.
+   */
+  public JsonNode webhook_event;
+}
@@ -0,0 +1,25 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * Ergebnis der Pruefung der Signatur eines Webhook-Ereignisses.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class WebhookVerificationResult
+{
+  /**
+   * Das Ergebnis. "SUCCESS" oder "FAILURE".
+   */
+  public String verification_status;
+}
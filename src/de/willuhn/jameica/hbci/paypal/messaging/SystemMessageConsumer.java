@@ -0,0 +1,59 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.messaging;
+
+import de.willuhn.jameica.hbci.paypal.synchronize.BackgroundSyncService;
+import de.willuhn.jameica.hbci.paypal.synchronize.WebhookService;
+import de.willuhn.jameica.messaging.Message;
+import de.willuhn.jameica.messaging.MessageConsumer;
+import de.willuhn.jameica.messaging.SystemMessage;
+import de.willuhn.jameica.services.BeanService;
+import de.willuhn.jameica.system.Application;
+
+/**
+ * Startet nach dem Start von Jameica den Abruf der Umsaetze im Hintergrund und den Empfang der Webhooks.
+ */
+public class SystemMessageConsumer implements MessageConsumer
+{
+  /**
+   * @see de.willuhn.jameica.messaging.MessageConsumer#getExpectedMessageTypes()
+   */
+  @Override
+  public Class[] getExpectedMessageTypes()
+  {
+    return new Class[]{SystemMessage.class};
+  }
+
+  /**
+   * @see de.willuhn.jameica.messaging.MessageConsumer#handleMessage(de.willuhn.jameica.messaging.Message)
+   */
+  @Override
+  public void handleMessage(Message message) throws Exception
+  {
+    final SystemMessage m = (SystemMessage) message;
+    if (m.getStatusCode() != SystemMessage.SYSTEM_STARTED)
+      return;
+
+    // Die Services starten sich beim Erzeugen selbst
+    final BeanService service = Application.getBootLoader().getBootable(BeanService.class);
+    service.get(BackgroundSyncService.class);
+    service.get(WebhookService.class);
+  }
+
+  /**
+   * @see de.willuhn.jameica.messaging.MessageConsumer#autoRegister()
+   */
+  @Override
+  public boolean autoRegister()
+  {
+    return true;
+  }
+}
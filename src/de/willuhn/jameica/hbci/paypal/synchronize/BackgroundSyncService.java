@@ -0,0 +1,296 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.annotation.Lifecycle;
+import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.datasource.rmi.DBIterator;
+import de.willuhn.jameica.hbci.SynchronizeOptions;
+import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.paypal.transport.CancelToken;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.synchronize.jobs.SynchronizeJobKontoauszug;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+
+/**
+ * Ruft die neuen Umsaetze der Paypal-Konten regelmaessig im Hintergrund ab.
+ * Aktiv fuer alle Konten, bei denen im Meta-Parameter {@link Plugin#META_PARAM_BACKGROUND_INTERVAL}
+ * ein Intervall hinterlegt ist. Abgerufen wird nur ab dem letzten Checkpoint und ohne Saldo.
+ * Konten ohne Checkpoint oder mit deaktiviertem Abruf der Kontoauszuege werden uebersprungen,
+ * bis eine manuelle Synchronisierung den ersten Checkpoint geschrieben hat.
+ * Gibt es bei einem Konto laengere Zeit keine neuen Umsaetze oder schlaegt der Abruf fehl,
+ * wird das Intervall schrittweise bis zum Maximum verlaengert. Sobald wieder Umsaetze kommen,
+ * gilt wieder das eingestellte Intervall. Ein Zufallsanteil verhindert, dass alle Konten
+ * gleichzeitig abgerufen werden.
+ * Der Abruf haelt die Sperre des Kontos aus dem {@link PaypalSynchronizeBackend}. Laeuft
+ * gerade eine manuelle Synchronisierung des Kontos, wird es beim naechsten Durchlauf erneut versucht.
+ */
+@Lifecycle(Type.CONTEXT)
+public class BackgroundSyncService
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+
+  @Resource
+  private PaypalSynchronizeBackend backend = null;
+
+  private final Map<String,State> states = new HashMap<>();
+  private ScheduledExecutorService scheduler = null;
+  private CancelToken token = null;
+
+  /**
+   * Initialisiert den Service.
+   */
+  @PostConstruct
+  private void init()
+  {
+    if (!settings.getBoolean("background.enabled",true))
+    {
+      Logger.info("background sync disabled");
+      return;
+    }
+
+    final long tick = Math.max(10L,settings.getLong("background.tick.seconds",60L));
+    Logger.info("init paypal background sync, checking accounts every " + tick + "s");
+
+    this.token = new CancelToken();
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r,"paypal-background");
+      t.setDaemon(true);
+      return t;
+    });
+    this.scheduler.scheduleWithFixedDelay(this::check,tick,tick,TimeUnit.SECONDS);
+  }
+
+  /**
+   * Beendet den Service.
+   */
+  @PreDestroy
+  private void shutdown()
+  {
+    if (this.scheduler == null)
+      return;
+
+    Logger.info("shutting down paypal background sync");
+    try
+    {
+      // Ein laufender Abruf wird sofort abgebrochen
+      this.token.cancel();
+      this.scheduler.shutdownNow();
+    }
+    finally
+    {
+      this.scheduler = null;
+    }
+  }
+
+  /**
+   * Prueft alle Konten und ruft die faelligen ab.
+   */
+  private void check()
+  {
+    try
+    {
+      final Set<String> active = new HashSet<>();
+      final DBIterator<Konto> list = de.willuhn.jameica.hbci.Settings.getDBService().createList(Konto.class);
+      while (list.hasNext())
+      {
+        this.token.check();
+
+        final Konto k = list.next();
+        final long interval = this.getInterval(k);
+        if (interval <= 0L || !Plugin.getStatus(k).checkSyncProvider())
+          continue;
+        
+        if (!new SynchronizeOptions(k).getSyncKontoauszuege() || SyncCheckpoint.load(k) == null)
+        {
+          Logger.debug("account " + k.getID() + " has no checkpoint or statement sync disabled, skipping background sync");
+          continue;
+        }
+
+        active.add(k.getID());
+        final long now = System.currentTimeMillis();
+        State state = this.states.get(k.getID());
+        if (state == null || state.base != interval)
+        {
+          // Neues oder geaendertes Intervall. Der erste Abruf erfolgt zufaellig innerhalb
+          // des Intervalls, damit nicht alle Konten direkt nach dem Start abgerufen werden
+          state = new State(interval);
+          state.next = now + ThreadLocalRandom.current().nextLong(interval + 1);
+          this.states.put(k.getID(),state);
+          continue;
+        }
+
+        if (now >= state.next)
+          this.sync(k,state);
+      }
+
+      // Konten, die nicht mehr im Hintergrund abgerufen werden
+      this.states.keySet().retainAll(active);
+    }
+    catch (OperationCanceledException oce)
+    {
+      Logger.info("background sync cancelled");
+    }
+    catch (Exception e)
+    {
+      // Nicht weiterwerfen, sonst fuehrt der Scheduler die Pruefung nie wieder aus
+      Logger.error("error while checking accounts for background sync",e);
+    }
+  }
+
+  /**
+   * Ruft die neuen Umsaetze des Kontos ab.
+   * @param k das Konto.
+   * @param state der Status des Kontos.
+   * @throws RemoteException
+   */
+  private void sync(Konto k, State state) throws RemoteException
+  {
+    final ReentrantLock lock = PaypalSynchronizeBackend.getLock(k);
+    if (!lock.tryLock())
+    {
+      Logger.info("account " + k.getID() + " is currently synchronized, skipping background sync");
+      return;
+    }
+
+    try
+    {
+      Logger.info("background sync of account " + k.getID() + ", interval: " + (state.interval / 60000L) + " min");
+      final PaypalSynchronizeJob job = this.backend.create(SynchronizeJobKontoauszug.class,k);
+      job.setContext(PaypalSynchronizeJob.CTX_BACKGROUND,Boolean.TRUE);
+      job.setContext(PaypalSynchronizeJob.CTX_CANCEL,this.token);
+      job.exeute();
+
+      final Object changes = job.getContext(PaypalSynchronizeJob.CTX_CHANGES);
+      state.success((changes instanceof Integer) && ((Integer) changes).intValue() > 0);
+    }
+    catch (OperationCanceledException oce)
+    {
+      throw oce;
+    }
+    catch (Exception e)
+    {
+      Logger.error("background sync of account " + k.getID() + " failed",e);
+      state.failure();
+    }
+    finally
+    {
+      lock.unlock();
+      Logger.info("next background sync of account " + k.getID() + " in " + ((state.next - System.currentTimeMillis()) / 1000L) + "s");
+    }
+  }
+
+  /**
+   * Liefert das im Konto hinterlegte Intervall.
+   * @param k das Konto.
+   * @return das Intervall in Millisekunden oder 0, wenn der Abruf im Hintergrund deaktiviert ist.
+   * @throws RemoteException
+   */
+  private long getInterval(Konto k) throws RemoteException
+  {
+    final String s = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_BACKGROUND_INTERVAL,null));
+    if (s == null)
+      return 0L;
+
+    try
+    {
+      final long minutes = Long.parseLong(s);
+      return minutes <= 0L ? 0L : Math.max(settings.getLong("background.interval.min.minutes",5L),minutes) * 60000L;
+    }
+    catch (NumberFormatException e)
+    {
+      Logger.warn("invalid value for " + Plugin.META_PARAM_BACKGROUND_INTERVAL + ": " + s + ", background sync disabled");
+      return 0L;
+    }
+  }
+
+  /**
+   * Status des Abrufs eines Kontos.
+   */
+  private static class State
+  {
+    private final long base;
+    private long interval;
+    private long next = 0L;
+
+    /**
+     * ct.
+     * @param base das eingestellte Intervall in Millisekunden.
+     */
+    private State(long base)
+    {
+      this.base     = base;
+      this.interval = base;
+    }
+
+    /**
+     * Wird nach einem erfolgreichen Abruf aufgerufen.
+     * @param changed true, wenn neue oder geaenderte Umsaetze abgerufen wurden.
+     */
+    private void success(boolean changed)
+    {
+      if (changed)
+        this.interval = this.base; // Es tut sich was auf dem Konto. Dann wieder im eingestellten Intervall
+      else
+        this.backoff(settings.getDouble("background.idle.factor",1.5d));
+      this.schedule();
+    }
+
+    /**
+     * Wird nach einem fehlgeschlagenen Abruf aufgerufen.
+     */
+    private void failure()
+    {
+      this.backoff(2d);
+      this.schedule();
+    }
+
+    /**
+     * Verlaengert das Intervall bis zum Maximum.
+     * @param factor der Faktor.
+     */
+    private void backoff(double factor)
+    {
+      final long max = Math.max(this.base,settings.getLong("background.interval.max.minutes",240L) * 60000L);
+      this.interval = Math.min(max,(long) (this.interval * Math.max(1d,factor)));
+    }
+
+    /**
+     * Legt den Zeitpunkt des naechsten Abrufs inclusive Zufallsanteil fest.
+     */
+    private void schedule()
+    {
+      final double jitter = Math.min(0.5d,Math.max(0d,settings.getDouble("background.jitter",0.2d)));
+      final double f = 1d + (jitter > 0d ? ThreadLocalRandom.current().nextDouble(-jitter,jitter) : 0d);
+      this.next = System.currentTimeMillis() + (long) (this.interval * f);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import de.willuhn.datasource.rmi.DBService;
+import de.willuhn.jameica.hbci.rmi.HibiscusAddress;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.hbci.server.VerwendungszweckUtil;
+
+/**
+ * Eine konvertierte Buchung ohne Bezug zur Datenbank.
+ * Wird von {@link TransactionConverter} befuellt und danach nicht mehr geaendert.
+ * Der eigentliche Hibiscus-Datensatz wird erst bei der Uebernahme per {@link #create(DBService,Konto)} erzeugt.
+ */
+class Booking
+{
+  String transactionId;
+  String endToEndId;
+  String art;
+  String customerRef;
+  String gvCode;
+  Double saldo;
+  Double betrag;
+  Date datum;
+  Date valuta;
+  String kommentar;
+  String zweck;
+  final List<String> usages = new ArrayList<>();
+
+  String gegenkontoIban;
+  String gegenkontoName;
+  
+  /**
+   * Vorlaeufige Buchung aus einem Webhook, die beim naechsten Abruf durch die Daten aus dem Reporting ersetzt wird.
+   */
+  boolean provisional = false;
+
+  /**
+   * Erzeugt den Hibiscus-Datensatz.
+   * @param service der Datenbank-Service.
+   * @param k das Konto.
+   * @return der noch nicht gespeicherte Umsatz.
+   * @throws RemoteException
+   */
+  Umsatz create(DBService service, Konto k) throws RemoteException
+  {
+    final Umsatz umsatz = (Umsatz) service.createObject(Umsatz.class,null);
+    umsatz.setKonto(k);
+    this.apply(service,umsatz);
+    return umsatz;
+  }
+
+  /**
+   * Ueberschreibt einen existierenden Umsatz komplett mit den Daten der Buchung.
+   * Danach entspricht er dem Umsatz, den {@link #create(DBService,Konto)} erzeugt haette.
+   * @param service der Datenbank-Service.
+   * @param umsatz der existierende Umsatz.
+   * @throws RemoteException
+   */
+  void update(DBService service, Umsatz umsatz) throws RemoteException
+  {
+    umsatz.setZweck(null);
+    umsatz.setZweck2(null);
+    umsatz.setWeitereVerwendungszwecke(new String[0]);
+    this.apply(service,umsatz);
+  }
+
+  /**
+   * Uebernimmt die Daten der Buchung in den Umsatz.
+   * @param service der Datenbank-Service.
+   * @param umsatz der Umsatz.
+   * @throws RemoteException
+   */
+  private void apply(DBService service, Umsatz umsatz) throws RemoteException
+  {
+    umsatz.setTransactionId(this.transactionId);
+    umsatz.setEndToEndId(this.endToEndId);
+    umsatz.setArt(this.art);
+    umsatz.setCustomerRef(this.customerRef);
+    umsatz.setGvCode(this.gvCode);
+    if (this.saldo != null)
+      umsatz.setSaldo(this.saldo.doubleValue());
+    if (this.betrag != null)
+      umsatz.setBetrag(this.betrag.doubleValue());
+    umsatz.setDatum(this.datum);
+    umsatz.setValuta(this.valuta);
+    umsatz.setKommentar(this.kommentar);
+    if (this.zweck != null)
+      umsatz.setZweck(this.zweck);
+    umsatz.setFlags(this.provisional ? (umsatz.getFlags() | Umsatz.FLAG_NOTBOOKED) : (umsatz.getFlags() & ~Umsatz.FLAG_NOTBOOKED));
+
+    final HibiscusAddress e = (HibiscusAddress) service.createObject(HibiscusAddress.class,null);
+    if (this.gegenkontoIban != null)
+      e.setIban(this.gegenkontoIban);
+    if (this.gegenkontoName != null)
+      e.setName(this.gegenkontoName);
+    umsatz.setGegenkonto(e);
+
+    if (!this.usages.isEmpty())
+      VerwendungszweckUtil.applyCamt(umsatz,this.usages);
+  }
+}
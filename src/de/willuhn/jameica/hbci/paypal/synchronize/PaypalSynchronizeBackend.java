@@ -13,19 +13,42 @@ package de.willuhn.jameica.hbci.paypal.synchronize;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Resource;
 
+import org.apache.commons.lang.StringUtils;
+
 import de.willuhn.annotation.Lifecycle;
 import de.willuhn.annotation.Lifecycle.Type;
 import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.paypal.transport.CancelToken;
 import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.rmi.Protokoll;
 import de.willuhn.jameica.hbci.synchronize.AbstractSynchronizeBackend;
 import de.willuhn.jameica.hbci.synchronize.SynchronizeEngine;
 import de.willuhn.jameica.hbci.synchronize.SynchronizeSession;
 import de.willuhn.jameica.hbci.synchronize.jobs.SynchronizeJob;
+import de.willuhn.jameica.system.Application;
 import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.jameica.system.Settings;
 import de.willuhn.logging.Logger;
 import de.willuhn.util.ApplicationException;
 import de.willuhn.util.ProgressMonitor;
@@ -36,6 +59,22 @@ import de.willuhn.util.ProgressMonitor;
 @Lifecycle(Type.CONTEXT)
 public class PaypalSynchronizeBackend extends AbstractSynchronizeBackend<PaypalSynchronizeJobProvider>
 {
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  
+  /**
+   * Sperren pro Konto, damit ein Konto nie mehrfach gleichzeitig synchronisiert wird.
+   */
+  private final static Map<String,ReentrantLock> locks = new ConcurrentHashMap<>();
+  
+  /**
+   * Prueft waehrend der Synchronisierung regelmaessig, ob der Anwender abgebrochen hat.
+   */
+  private final static ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+    final Thread t = new Thread(r,"paypal-cancel-watchdog");
+    t.setDaemon(true);
+    return t;
+  });
+
   @Resource
   private SynchronizeEngine engine = null;
 
@@ -134,7 +173,80 @@ public class PaypalSynchronizeBackend extends AbstractSynchronizeBackend<PaypalS
     if (!Plugin.getStatus(konto).checkSyncProvider())
       return null;
     
-    return Arrays.asList(Plugin.META_PARAM_API_CLIENTID, Plugin.META_PARAM_API_SECRET, Plugin.META_PARAM_IMPORT_AUTHORIZATIONS+"(true/false)");
+    return Arrays.asList(Plugin.META_PARAM_API_CLIENTID, Plugin.META_PARAM_API_SECRET, Plugin.META_PARAM_IMPORT_AUTHORIZATIONS+"(true/false)", Plugin.META_PARAM_PARALLEL_REQUESTS, Plugin.META_PARAM_JOURNAL+"(true/false)", Plugin.META_PARAM_JOURNAL_REPLAY+"(true/false)", Plugin.META_PARAM_SYNC_CHECKPOINT, Plugin.META_PARAM_BACKGROUND_INTERVAL, Plugin.META_PARAM_WEBHOOK_ID);
+  }
+
+  /**
+   * Liefert die Sperre fuer das Konto.
+   * Jede Synchronisierung eines Kontos muss sie halten.
+   * @param k das Konto.
+   * @return die Sperre.
+   * @throws RemoteException
+   */
+  static ReentrantLock getLock(Konto k) throws RemoteException
+  {
+    return locks.computeIfAbsent(k.getID(),id -> new ReentrantLock());
+  }
+  
+  /**
+   * Liefert die parallele Ausfuehrung, zu der die Job-Gruppe gehoert.
+   * Beim ersten Aufruf fuer eine Synchronisierung werden alle Job-Gruppen gestartet.
+   * Die Ausfuehrung wird an den Job-Gruppen der Synchronisierung hinterlegt und endet mit ihr.
+   * @param group die Job-Gruppe.
+   * @param parallel Anzahl der parallel synchronisierten Konten.
+   * @return die parallele Ausfuehrung.
+   */
+  private synchronized ParallelSession getParallelSession(PaypalJobGroup group, int parallel)
+  {
+    if (group.session == null)
+    {
+      final ParallelSession session = new ParallelSession(worker,this.schedule(worker.getSynchronization()),parallel);
+      for (JobGroup g:worker.getSynchronization())
+      {
+        ((PaypalJobGroup) g).session = session;
+      }
+      session.start();
+    }
+    return group.session;
+  }
+
+  /**
+   * Legt die Reihenfolge fest, in der die Job-Gruppen gestartet werden.
+   * Konten mit der selben Client-ID teilen sich bei Paypal ein Kontingent und im
+   * {@link de.willuhn.jameica.hbci.paypal.transport.TransportService} einen Rate-Limiter.
+   * Die Gruppen werden daher reihum nach Client-ID gestartet, damit zuerst Konten
+   * mit unterschiedlichen Kontingenten parallel laufen.
+   * @param groups die Job-Gruppen.
+   * @return die Job-Gruppen in der Start-Reihenfolge.
+   */
+  private List<JobGroup> schedule(List<JobGroup> groups)
+  {
+    final Map<String,LinkedList<JobGroup>> byClient = new LinkedHashMap<>();
+    for (JobGroup g:groups)
+    {
+      String clientId = null;
+      try
+      {
+        clientId = StringUtils.trimToNull(g.getKonto().getMeta(Plugin.META_PARAM_API_CLIENTID,null));
+      }
+      catch (RemoteException re)
+      {
+        Logger.error("unable to determine client-id",re);
+      }
+      byClient.computeIfAbsent(clientId != null ? clientId : "",k -> new LinkedList<>()).add(g);
+    }
+    
+    final List<JobGroup> result = new ArrayList<>(groups.size());
+    while (result.size() < groups.size())
+    {
+      for (LinkedList<JobGroup> list:byClient.values())
+      {
+        if (!list.isEmpty())
+          result.add(list.removeFirst());
+      }
+    }
+    Logger.info("scheduled " + groups.size() + " accounts with " + byClient.size() + " client-id(s)");
+    return result;
   }
 
   /**
@@ -150,32 +262,270 @@ public class PaypalSynchronizeBackend extends AbstractSynchronizeBackend<PaypalS
     {
       super(k);
     }
+    
+    /**
+     * Abbruch-Signal fuer die Jobs des Kontos.
+     */
+    private final CancelToken token = new CancelToken();
+    
+    /**
+     * Die parallele Ausfuehrung, zu der die Job-Gruppe gehoert. NULL, wenn die Konten nacheinander synchronisiert werden.
+     */
+    private ParallelSession session = null;
 
     /**
      * @see de.willuhn.jameica.hbci.synchronize.AbstractSynchronizeBackend.JobGroup#sync()
      */
     protected void sync() throws Exception
     {
-      ////////////////////////////////////////////////////////////////////
-      // lokale Variablen
-      ProgressMonitor monitor = worker.getMonitor();
+      getCurrentSession().setProgressWindow(this.getProgressWindow());
+
+      final int parallel = settings.getInt("sync.accounts.parallel",1);
+      if (parallel <= 1 || worker.getSynchronization().size() <= 1)
+      {
+        this.run();
+        return;
+      }
       
+      // Die Konten laufen parallel. Wir warten hier nur noch auf das Ergebnis dieses Kontos,
+      // damit Fortschritt und Fehler wie gewohnt pro Konto gemeldet werden.
+      getParallelSession(this,parallel).await(this);
+    }
+    
+    /**
+     * Liefert den Anteil des Kontos am Fortschrittsbalken.
+     * @return der Anteil in Prozent.
+     */
+    private double getProgressWindow()
+    {
       double chunk  = 100d / (worker.getSynchronization().size()) * (this.jobs.size());
-      double window = chunk - 6d;
-      getCurrentSession().setProgressWindow(window);
-      ////////////////////////////////////////////////////////////////////
-
+      return chunk - 6d;
+    }
+    
+    /**
+     * Fuehrt die Jobs des Kontos nacheinander aus.
+     * @throws Exception
+     */
+    private void run() throws Exception
+    {
+      ProgressMonitor monitor = worker.getMonitor();
+      
       this.checkInterrupted();
 
-      monitor.log(" ");
-      monitor.log(i18n.tr("Synchronisiere Konto: {0}",this.getKonto().getLongName()));
+      final Konto konto = this.getKonto();
+      final ReentrantLock lock = getLock(konto);
+      if (!lock.tryLock())
+      {
+        Logger.info("account " + konto.getID() + " is currently synchronized, waiting");
+        lock.lockInterruptibly();
+      }
+      
+      // Die Jobs pruefen den Abbruch nicht nur zwischen den Jobs sondern auch waehrend
+      // des Abrufs. Laufende Requests werden dabei sofort abgebrochen.
+      final CancelToken token = this.token;
+      final Worker w = worker;
+      final long interval = Math.max(50L,settings.getLong("sync.cancel.poll.ms",250L));
+      final ScheduledFuture<?> check = watchdog.scheduleWithFixedDelay(() -> {
+        if (w.isInterrupted())
+          token.cancel();
+      },interval,interval,TimeUnit.MILLISECONDS);
+      
+      try
+      {
+        monitor.log(" ");
+        monitor.log(i18n.tr("Synchronisiere Konto: {0}",konto.getLongName()));
 
-      Logger.info("processing jobs");
-      for (SynchronizeJob job:this.jobs)
+        Logger.info("processing jobs");
+        for (SynchronizeJob job:this.jobs)
+        {
+          this.checkInterrupted();
+          monitor.setStatusText(i18n.tr("Fhre Geschftsvorfall aus: \"{0}\"",job.getName()));
+          job.setContext(PaypalSynchronizeJob.CTX_CANCEL,token);
+          job.setContext(PaypalSynchronizeJob.CTX_PROGRESS,new SyncProgress(monitor,this.getProgressWindow() / this.jobs.size()));
+          ((PaypalSynchronizeJob)job).exeute();
+        }
+      }
+      finally
+      {
+        check.cancel(false);
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Die parallele Ausfuehrung der Job-Gruppen einer Synchronisierung.
+   * Endet die Synchronisierung vorzeitig - etwa weil der Anwender abbricht oder ein
+   * Konto fehlschlaegt und Hibiscus die Synchronisierung beendet - werden die noch
+   * laufenden Konten abgebrochen und die noch nicht gestarteten gar nicht erst gestartet.
+   * Fehler von Konten, auf deren Ergebnis niemand mehr wartet, werden protokolliert.
+   */
+  private class ParallelSession
+  {
+    private final Worker worker;
+    private final List<JobGroup> groups;
+    private final ExecutorService executor;
+    private final Map<JobGroup,Future<?>> futures = new IdentityHashMap<>();
+    private final Map<JobGroup,Exception> failures = new IdentityHashMap<>();
+    private final Set<JobGroup> collected = Collections.newSetFromMap(new IdentityHashMap<>());
+    private volatile ScheduledFuture<?> check = null;
+    private boolean ended = false;
+
+    /**
+     * ct.
+     * @param worker die Synchronisierung.
+     * @param groups die Job-Gruppen in der Start-Reihenfolge.
+     * @param parallel Anzahl der parallel synchronisierten Konten.
+     */
+    private ParallelSession(Worker worker, List<JobGroup> groups, int parallel)
+    {
+      this.worker = worker;
+      this.groups = groups;
+      
+      final AtomicInteger count = new AtomicInteger();
+      this.executor = Executors.newFixedThreadPool(Math.min(parallel,groups.size()),r -> {
+        final Thread t = new Thread(r,"paypal-sync-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+      Logger.info("synchronizing " + groups.size() + " accounts, max. parallel: " + parallel);
+    }
+    
+    /**
+     * Startet alle Job-Gruppen.
+     */
+    private synchronized void start()
+    {
+      for (JobGroup g:this.groups)
+      {
+        final PaypalJobGroup pg = (PaypalJobGroup) g;
+        this.futures.put(g,this.executor.submit(() -> {
+          try
+          {
+            pg.run();
+          }
+          catch (Exception e)
+          {
+            this.failed(pg,e);
+            throw e;
+          }
+          return null;
+        }));
+      }
+      this.executor.shutdown();
+      
+      final long interval = Math.max(50L,settings.getLong("sync.cancel.poll.ms",250L));
+      this.check = watchdog.scheduleWithFixedDelay(this::check,interval,interval,TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Wartet auf das Ergebnis der Job-Gruppe.
+     * @param group die Job-Gruppe.
+     * @throws Exception der Fehler der Job-Gruppe.
+     */
+    private void await(PaypalJobGroup group) throws Exception
+    {
+      final Future<?> f;
+      synchronized (this)
+      {
+        this.collected.add(group);
+        f = this.futures.get(group);
+      }
+      
+      try
+      {
+        f.get();
+      }
+      catch (CancellationException ce)
+      {
+        throw new OperationCanceledException(ce);
+      }
+      catch (ExecutionException ee)
+      {
+        final Throwable cause = ee.getCause();
+        if (cause instanceof Exception)
+          throw (Exception) cause;
+        throw ee;
+      }
+    }
+    
+    /**
+     * Wird aufgerufen, wenn eine Job-Gruppe fehlgeschlagen ist.
+     * @param group die Job-Gruppe.
+     * @param e der Fehler.
+     */
+    private synchronized void failed(JobGroup group, Exception e)
+    {
+      if (this.ended && !this.collected.contains(group))
+        this.report(group,e);
+      else
+        this.failures.put(group,e);
+    }
+    
+    /**
+     * Prueft, ob die Synchronisierung noch laeuft.
+     */
+    private void check()
+    {
+      if (this.executor.isTerminated())
+      {
+        this.check.cancel(false);
+        return;
+      }
+      
+      final int status = this.worker.getStatus();
+      if (this.worker.isInterrupted() || status == ProgressMonitor.STATUS_DONE || status == ProgressMonitor.STATUS_ERROR || status == ProgressMonitor.STATUS_CANCEL)
+        this.end();
+    }
+    
+    /**
+     * Beendet die parallele Ausfuehrung.
+     * Alle Konten, auf deren Ergebnis niemand mehr wartet, werden abgebrochen.
+     */
+    private synchronized void end()
+    {
+      if (this.ended)
+        return;
+      
+      this.ended = true;
+      for (JobGroup g:this.groups)
+      {
+        if (this.collected.contains(g))
+          continue;
+        
+        final Future<?> f = this.futures.get(g);
+        if (!f.isDone())
+        {
+          Logger.info("synchronization ended, cancelling account");
+          ((PaypalJobGroup) g).token.cancel();
+          f.cancel(false);
+        }
+        
+        final Exception e = this.failures.remove(g);
+        if (e != null)
+          this.report(g,e);
+      }
+    }
+    
+    /**
+     * Protokolliert den Fehler einer Job-Gruppe, auf deren Ergebnis niemand mehr wartet.
+     * @param group die Job-Gruppe.
+     * @param e der Fehler.
+     */
+    private void report(JobGroup group, Exception e)
+    {
+      if (e instanceof OperationCanceledException)
+        return;
+      
+      try
+      {
+        final Konto k = group.getKonto();
+        Logger.error("synchronization of account " + k.getID() + " failed after the synchronization ended",e);
+        k.addToProtokoll(i18n.tr("Synchronisierung fehlgeschlagen: {0}",e.getMessage()),Protokoll.TYP_ERROR);
+      }
+      catch (RemoteException re)
       {
-        this.checkInterrupted();
-        monitor.setStatusText(i18n.tr("Fhre Geschftsvorfall aus: \"{0}\"",job.getName()));
-        ((PaypalSynchronizeJob)job).exeute();
+        Logger.error("unable to report failed synchronization",re);
       }
     }
   }
@@ -18,6 +18,27 @@ import de.willuhn.util.ApplicationException;
  */
 public interface PaypalSynchronizeJob extends SynchronizeJob
 {
+  /**
+   * Context-Key fuer das Abbruch-Signal der Synchronisierung.
+   */
+  public final static String CTX_CANCEL = "ctx.cancel";
+
+  /**
+   * Context-Key fuer die Fortschrittsanzeige der Synchronisierung.
+   */
+  public final static String CTX_PROGRESS = "ctx.progress";
+
+  /**
+   * Context-Key, ob der Auftrag im Hintergrund laeuft.
+   * Dann werden nur die neuen Umsaetze abgerufen - ohne Saldo und ohne Journal-Import.
+   */
+  public final static String CTX_BACKGROUND = "ctx.background";
+
+  /**
+   * Context-Key, unter dem der Auftrag die Anzahl der neuen und geaenderten Umsaetze hinterlegt.
+   */
+  public final static String CTX_CHANGES = "ctx.changes";
+
   /**
    * Fuehrt den Auftrag aus.
    * @throws ApplicationException wenn die Ausfhrung fehlschlug.
@@ -12,40 +12,38 @@
 package de.willuhn.jameica.hbci.paypal.synchronize;
 
 import java.rmi.RemoteException;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 import javax.annotation.Resource;
 
 import org.apache.commons.lang.StringUtils;
 
-import de.willuhn.datasource.GenericObject;
-import de.willuhn.datasource.rmi.DBIterator;
+import de.willuhn.datasource.rmi.DBService;
 import de.willuhn.jameica.hbci.HBCI;
 import de.willuhn.jameica.hbci.HBCIProperties;
 import de.willuhn.jameica.hbci.SynchronizeOptions;
-import de.willuhn.jameica.hbci.messaging.ImportMessage;
+import de.willuhn.jameica.hbci.messaging.ObjectChangedMessage;
 import de.willuhn.jameica.hbci.messaging.SaldoMessage;
 import de.willuhn.jameica.hbci.paypal.Plugin;
 import de.willuhn.jameica.hbci.paypal.domain.ApiAuth;
 import de.willuhn.jameica.hbci.paypal.domain.BalanceDetail;
 import de.willuhn.jameica.hbci.paypal.domain.BalanceResult;
-import de.willuhn.jameica.hbci.paypal.domain.CartItemDetail;
-import de.willuhn.jameica.hbci.paypal.domain.Money;
-import de.willuhn.jameica.hbci.paypal.domain.PayerInfo;
-import de.willuhn.jameica.hbci.paypal.domain.PayerName;
 import de.willuhn.jameica.hbci.paypal.domain.TransactionDetails;
 import de.willuhn.jameica.hbci.paypal.domain.TransactionInfo;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionResult;
 import de.willuhn.jameica.hbci.paypal.transport.ApiException;
+import de.willuhn.jameica.hbci.paypal.transport.CancelToken;
+import de.willuhn.jameica.hbci.paypal.transport.TransactionHandler;
+import de.willuhn.jameica.hbci.paypal.transport.TransactionJournal;
+import de.willuhn.jameica.hbci.paypal.transport.TransportContext;
 import de.willuhn.jameica.hbci.paypal.transport.TransportService;
-import de.willuhn.jameica.hbci.rmi.HibiscusAddress;
 import de.willuhn.jameica.hbci.rmi.Konto;
 import de.willuhn.jameica.hbci.rmi.Protokoll;
 import de.willuhn.jameica.hbci.rmi.Umsatz;
-import de.willuhn.jameica.hbci.server.VerwendungszweckUtil;
 import de.willuhn.jameica.hbci.synchronize.jobs.SynchronizeJobKontoauszug;
 import de.willuhn.jameica.messaging.StatusBarMessage;
 import de.willuhn.jameica.system.Application;
@@ -63,6 +61,7 @@ public class PaypalSynchronizeJobKontoauszug extends SynchronizeJobKontoauszug i
 {
   private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
   private final static Settings settings = Application.getPluginLoader().getPlugin(HBCI.class).getResources().getSettings();
+  private final static Settings pluginSettings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
 
   @Resource private TransportService transportService;
 
@@ -78,88 +77,94 @@ public class PaypalSynchronizeJobKontoauszug extends SynchronizeJobKontoauszug i
       Boolean forceSaldo   = (Boolean) this.getContext(CTX_FORCE_SALDO);
       Boolean forceUmsatz  = (Boolean) this.getContext(CTX_FORCE_UMSATZ);
       
+      // Beim Abruf im Hintergrund holen wir nur die neuen Umsaetze
+      final boolean background = Boolean.TRUE.equals(this.getContext(CTX_BACKGROUND));
+      
       SynchronizeOptions o = new SynchronizeOptions(k);
-      boolean syncSaldo  = (o.getSyncSaldo() || (forceSaldo != null && forceSaldo.booleanValue()));
-      boolean syncUmsatz = (o.getSyncKontoauszuege() || (forceUmsatz != null && forceUmsatz.booleanValue()));
+      boolean syncSaldo  = !background && (o.getSyncSaldo() || (forceSaldo != null && forceSaldo.booleanValue()));
+      boolean syncUmsatz = o.getSyncKontoauszuege() || (forceUmsatz != null && forceUmsatz.booleanValue());
       
       if (!syncSaldo && !syncUmsatz)
       {
         Logger.info("no synchronize options activated");
         return;
       }
+      
+      // Ohne Checkpoint wuerde der Abruf alle Umsaetze holen. Das ist Sache der manuellen Synchronisierung
+      if (background && SyncCheckpoint.load(k) == null)
+      {
+        Logger.info("no checkpoint for account " + k.getID() + ", skipping background sync");
+        return;
+      }
+
+      // Umsaetze aus dem lokalen Journal uebernehmen. Dafuer brauchen wir keine Verbindung zu Paypal
+      if (!background && syncUmsatz && "true".equals(k.getMeta(Plugin.META_PARAM_JOURNAL_REPLAY,"false")))
+      {
+        this.replay(k);
+        return;
+      }
 
       final Date startDate = this.getStartDate(k);
       
       final ApiAuth auth = this.transportService.login(k);
+      final TransportContext ctx = this.transportService.createContext(k,this.getCancelToken());
+      final SyncProgress progress = this.getProgress();
+      ctx.setProgressListener(progress);
+      
+      // Den Saldo rufen wir parallel zu den Umsaetzen ab
+      final CompletableFuture<BalanceResult> balances = syncSaldo ? this.transportService.getBalancesAsync(auth,ctx) : null;
 
       if (syncUmsatz)
       {
-        final List<TransactionDetails> result = this.transportService.getTransactions(auth,startDate);
-
-      	int created = 0;
-      	int skipped = 0;
-      
-      	if (!result.isEmpty())
-      	{
-      	  final Date mergeWindow = this.getMergeWindow(startDate, result);
-      	  final DBIterator existing = k.getUmsaetze(mergeWindow, null);
-      
-      	  Logger.info("applying entries");
-      
-      	  for (TransactionDetails t : result)
-      	  {
-      	    final List<Umsatz> umsaetze = convert(t);
-      	    if (umsaetze == null || umsaetze.isEmpty())
-      	      continue;
-      
-      	    for (Umsatz umsatz : umsaetze)
-      	    {
-      	      umsatz.setKonto(k);
-      
-      	      boolean found = false;
-      
-      	      /////////////////////////////////////////
-      	      // Checken, ob wir den Umsatz schon haben
-      	      existing.begin();
-      	      for (int i = 0; i < existing.size(); i++)
-      	      {
-            		GenericObject dbObject = existing.next();
-            		found = dbObject.equals(umsatz);
-            		if (found)
-            		{
-            		  skipped++; // Haben wir schon
-            		  break;
-            		}
-      	      }
-      	      /////////////////////////////////////////
-      
-      	      // Umsatz neu anlegen
-      	      if (!found)
-      	      {
-            		try
-            		{
-            		  umsatz.store(); // den Umsatz haben wir noch nicht, speichern!
-            		  Application.getMessagingFactory().sendMessage(new ImportMessage(umsatz));
-            		  created++;
-            		}
-            		catch (Exception e2)
-            		{
-            		  Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("Nicht alle empfangenen Umstze konnten gespeichert werden. Bitte prfen Sie das System-Protokoll"),StatusBarMessage.TYPE_ERROR));
-            		  Logger.error("error while adding umsatz, skipping this one", e2);
-            		}
-	            }
-	          }
-	        }
+        final Importer importer = new Importer(k,startDate,this.getMergeWindow(startDate),progress);
+        
+        // Abruf und Verarbeitung laufen parallel. Jede Seite wird verarbeitet, sobald sie da ist.
+        final TransactionPipeline pipeline = new TransactionPipeline(pluginSettings.getInt("pipeline.pages",4));
+        final TransactionJournal.Writer journal = "true".equals(k.getMeta(Plugin.META_PARAM_JOURNAL,"false")) ? new TransactionJournal(k).append(pipeline) : null;
+        final CompletableFuture<Void> producer = this.transportService.getTransactionsAsync(auth,startDate,this.getParallelRequests(k),ctx,journal != null ? journal : pipeline);
+        producer.whenComplete((v,t) -> {
+          // Ein fehlgeschlagener Abruf darf nicht im Journal landen
+          if (journal != null && t != null)
+            journal.abort();
+          else if (journal != null)
+            journal.close();
+          pipeline.finish();
+        });
+        
+        try
+        {
+          TransactionResult page = null;
+          while ((page = pipeline.take()) != null)
+          {
+            ctx.getCancelToken().check();
+            importer.apply(page);
+          }
+          importer.flush();
+          
+          // Falls der Abruf fehlgeschlagen ist, kommt der Fehler hier
+          TransportService.await(producer);
         }
-	      Logger.info("done. new entries: " + created + ", skipped entries (already in database): " + skipped);
-	      k.addToProtokoll(i18n.tr("Umstze abgerufen"), Protokoll.TYP_SUCCESS);
+        finally
+        {
+          pipeline.abort();
+        }
+        
+        importer.finish(true);
+        this.setContext(CTX_CHANGES,importer.getChanges());
+        
+        // Im Hintergrund nur protokollieren, wenn sich was geaendert hat. Sonst waere das Protokoll voll davon
+        if (!background || importer.getChanges() > 0)
+          k.addToProtokoll(i18n.tr("Umstze abgerufen"), Protokoll.TYP_SUCCESS);
       }
       
       if (syncSaldo)
       {
-        // Jetzt noch den Saldo abrufen
-        this.applySaldo(k,this.transportService.getBalances(auth));
+        // Jetzt noch den Saldo uebernehmen
+        this.applySaldo(k,TransportService.await(balances));
       }
+      
+      Logger.info("http connection pool: " + this.transportService.getPoolStats() + ", retries: " + ctx.getRetries());
+      Logger.info("http transfer: " + this.transportService.getBytesReceived() + " bytes received, " + this.transportService.getBytesDecoded() + " bytes decoded");
     }
     catch (ApiException ae)
     {
@@ -183,6 +188,46 @@ public class PaypalSynchronizeJobKontoauszug extends SynchronizeJobKontoauszug i
     }
   }
   
+  /**
+   * Liefert das Abbruch-Signal, das die Job-Gruppe ausloest, wenn der Anwender die Synchronisierung abbricht.
+   * @return das Abbruch-Signal.
+   */
+  private CancelToken getCancelToken()
+  {
+    final Object token = this.getContext(CTX_CANCEL);
+    return (token instanceof CancelToken) ? (CancelToken) token : new CancelToken();
+  }
+  
+  /**
+   * Liefert die Fortschrittsanzeige der Job-Gruppe.
+   * @return die Fortschrittsanzeige oder NULL, wenn keine vorhanden ist.
+   */
+  private SyncProgress getProgress()
+  {
+    final Object progress = this.getContext(CTX_PROGRESS);
+    return (progress instanceof SyncProgress) ? (SyncProgress) progress : null;
+  }
+  
+  /**
+   * Uebernimmt die Umsaetze aus dem lokalen Journal.
+   * @param k das Konto.
+   * @throws Exception
+   */
+  private void replay(Konto k) throws Exception
+  {
+    Logger.info("replaying transactions from journal, skipping balance");
+    
+    final Importer importer = new Importer(k,null,null,this.getProgress());
+    new TransactionJournal(k).replay(importer);
+    
+    // Der Checkpoint bleibt wie er ist. Das Journal ist nicht neuer als der letzte Abruf
+    importer.finish(false);
+    
+    // Nur einmalig
+    k.setMeta(Plugin.META_PARAM_JOURNAL_REPLAY,"false");
+    k.addToProtokoll(i18n.tr("Umstze aus Journal bernommen"), Protokoll.TYP_SUCCESS);
+  }
+  
   /**
    * bernimmt den Saldo.
    * @param k das Konto.
@@ -241,327 +286,313 @@ public class PaypalSynchronizeJobKontoauszug extends SynchronizeJobKontoauszug i
   
   /**
    * Liefert das Startdatum fuer den Abgleich mit den existierenden Umsaetzen.
+   * Da die Seiten verarbeitet werden, waehrend die weiteren noch abgerufen werden,
+   * kennen wir die aelteste empfangene Buchung noch nicht. Wir rechnen daher vom
+   * gesendeten Startdatum aus zurueck.
    * @param startDate das von uns gesendete Startdatum.
-   * @param tr die Umsatzbuchungen.
    * @return das Startdatum. Kann NULL sein.
    */
-  private Date getMergeWindow(final Date startDate, final List<TransactionDetails> tr)
+  private Date getMergeWindow(final Date startDate)
   {
-    // Das Datum der ltesten empfangenen Transaktion
-    Date d = null;
-    String basedOn = null;
+    if (startDate == null)
+    {
+      Logger.info("merge window: not set");
+      return null;
+    }
 
-    if (tr != null && !tr.isEmpty())
+    Calendar cal = Calendar.getInstance();
+    cal.setTime(startDate);
+    cal.add(Calendar.DATE,settings.getInt("umsatz.mergewindow.offset",-30));
+    final Date d = cal.getTime();
+    Logger.info("merge window: " + d + " - now (based on last sync)");
+    return d;
+  }
+  
+  /**
+   * Liefert das zu verwendende Start-Datum.
+   * Existiert ein Checkpoint vom letzten Abruf, beginnen wir dort - abzueglich einer
+   * kleinen Ueberlappung. Andernfalls wird das Saldo-Datum verwendet.
+   * @param k das Konto.
+   * @return das Start-Datum.
+   */
+  private Date getStartDate(Konto k) throws RemoteException
+  {
+    final Date checkpoint = SyncCheckpoint.load(k);
+    if (checkpoint != null)
     {
-      for (TransactionDetails td:tr)
+      final long overlap = Math.max(0L,pluginSettings.getLong("sync.checkpoint.overlap.minutes",60L));
+      final Date start = new Date(checkpoint.getTime() - overlap * 60 * 1000L);
+      Logger.info("startdate: " + HBCI.LONGDATEFORMAT.format(start) + " (based on checkpoint " + checkpoint + ")");
+      return start;
+    }
+    
+    Date start = k.getSaldoDatum();
+    if (start != null)
+    {
+      // Checken, ob das Datum vielleicht in der Zukunft liegt. Das ist nicht zulaessig
+      if (start.after(new Date()))
       {
-        final TransactionInfo ti = td.transaction_info;
-        if (ti == null || ti.transaction_updated_date == null)
-          continue;
-
-        Date nd = ti.transaction_updated_date;
-        if (d == null || nd.before(d))
-        {
-          d = nd;
-          basedOn = "received data";
-        }
+        Logger.warn("future start date " + start + " given. this is not allowed");
+        start = null;
       }
     }
-
-    // Wir haben keine Umstze erhalten oder kein Datum aus den Umstzen ermitteln knnen
-    if (d == null && startDate != null)
+    
+    if (start == null)
     {
+      // Wir nehmen die letzten 360 Tage
       Calendar cal = Calendar.getInstance();
-      cal.setTime(startDate);
-      cal.add(Calendar.DATE,settings.getInt("umsatz.mergewindow.offset",-30));
-      d = cal.getTime();
-      basedOn = "last sync";
+      cal.add(Calendar.DATE,-360);
+      start = cal.getTime();
     }
-    
-    if (d == null)
-      Logger.info("merge window: not set");
     else
-      Logger.info("merge window: " + d + " - now (based on " + basedOn + ")");
+    {
+      // Umsaetze vom Vortrag erneut abrufen
+      start = new Date(start.getTime() - 24 * 60 * 60 * 1000L);
+    }
     
-    return d;
+    start = DateUtil.startOfDay(start);
+    Logger.info("startdate: " + HBCI.LONGDATEFORMAT.format(start));
+    return start;
   }
-  
+
   /**
-   * Konvertiert die Buchung in einen Hibiscus-Datensatz.
-   * @param t die Buchung.
-   * @return der Hibiscus-Datensatz.
-   * @throws Exception
+   * Liefert die maximale Anzahl paralleler Abfragen fuer das Konto.
+   * Ohne Angabe im Konto wird wie bisher nacheinander abgerufen.
+   * @param k das Konto.
+   * @return die Anzahl paralleler Abfragen.
+   * @throws RemoteException
    */
-  private List<Umsatz> convert(TransactionDetails t) throws Exception
+  private int getParallelRequests(Konto k) throws RemoteException
   {
-    final Konto k = (Konto) this.getContext(CTX_ENTITY);
-    boolean importAuthorizations = "true".equals(k.getMeta(Plugin.META_PARAM_IMPORT_AUTHORIZATIONS, "true"));
+    final String s = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_PARALLEL_REQUESTS,null));
+    if (s == null)
+      return 1;
     
-    final TransactionInfo ti = t.transaction_info;
-    if (ti == null)
+    try
     {
-      Logger.warn("received transaction-details w/o transaction-info - skipping");
-      return null;
+      return Math.max(1,Integer.parseInt(s));
     }
-    
-    final List<Umsatz> result = new ArrayList<>();
-
-    final String status = ti.transaction_status;
-    final String ec = ti.transaction_event_code;
-    String feeZweck = i18n.tr("Gebhren fr Transaktion {0}",ti.transaction_id);
-    
-    // Wir bernehmen Transaktionen nur, wenn sie den Status "S" oder "P" haben oder gar keinen
-    if (status != null && !Objects.equals("S",status) && !Objects.equals("P",status))
+    catch (NumberFormatException e)
     {
-      Logger.info("skipping denied/reversed transaction id " + ti.transaction_id + " (status: " + status + ")");
-      return null;
+      Logger.warn("invalid value for " + Plugin.META_PARAM_PARALLEL_REQUESTS + ": " + s + ", using sequential mode");
+      return 1;
     }
-    
-    Umsatz umsatz = (Umsatz) de.willuhn.jameica.hbci.Settings.getDBService().createObject(Umsatz.class,null);
-    result.add(umsatz);
-    umsatz.setTransactionId(ti.transaction_id);
-    umsatz.setEndToEndId(ti.transaction_id);
-    umsatz.setArt(clean(ec));
-    umsatz.setCustomerRef(t.payer_info != null ? t.payer_info.account_id : null);
-    umsatz.setGvCode(status);
-    
-    Money saldo = ti.ending_balance;
-    if (saldo != null)
-      umsatz.setSaldo(saldo.doubleValue());
+  }
 
-    Money value = ti.transaction_amount;
-    if (value != null)
-      umsatz.setBetrag(value.doubleValue());
+  /**
+   * Uebernimmt die empfangenen Seiten in die Datenbank.
+   */
+  private class Importer implements TransactionHandler
+  {
+    private final Konto konto;
+    private final Date window;
+    private final Date mergeWindow;
+    private final SyncCheckpoint checkpoint = new SyncCheckpoint();
+    private final TransactionConverter converter;
+    private final DBService service;
+    private final TransactionFilter filter;
+    private final UmsatzBatch batch;
+    private final SyncProgress progress;
+    private final ProvisionalBookings provisional;
+    private UmsatzIndex existing = null;
+    private int skipped = 0;
+    private int unchecked = 0;
     
-    umsatz.setDatum(ti.transaction_updated_date);
-    umsatz.setValuta(ti.transaction_updated_date);
-
-    final List<String> usages = new ArrayList<>();
-    if (StringUtils.trimToNull(ti.transaction_subject) != null)
-      usages.add(ti.transaction_subject);
-    if (StringUtils.trimToNull(ti.transaction_note) != null && (StringUtils.trimToNull(ti.transaction_subject) == null || !ti.transaction_note.trim().equals(ti.transaction_subject.trim())))
-      usages.add(ti.transaction_note);
-    if (t.cart_info != null && t.cart_info.item_details != null && !t.cart_info.item_details.isEmpty())
+    /**
+     * ct.
+     * @param konto das Konto.
+     * @param window Beginn des abgerufenen Zeitraumes. NULL, wenn nicht von Paypal abgerufen wird.
+     * @param mergeWindow Startdatum fuer den Abgleich mit den existierenden Umsaetzen. Kann NULL sein.
+     * @param progress optionale Fortschrittsanzeige.
+     * @throws RemoteException
+     */
+    private Importer(Konto konto, Date window, Date mergeWindow, SyncProgress progress) throws RemoteException
     {
-      for (CartItemDetail cd:t.cart_info.item_details)
-      {
-        if (StringUtils.trimToNull(cd.item_name) != null)
-        {
-          if (!usages.isEmpty())
-          {
-            if (!usages.contains(cd.item_name))
-              usages.add(", " + cd.item_name);
-          }
-          else
-            usages.add(cd.item_name);
-        }
-      }
+      this.konto       = konto;
+      this.window      = window;
+      this.mergeWindow = mergeWindow;
+      this.progress    = progress;
+      this.converter   = new TransactionConverter(konto);
+      this.service     = de.willuhn.jameica.hbci.Settings.getDBService();
+      this.filter      = pluginSettings.getBoolean("filter.enabled",true) ? TransactionFilter.load(konto) : null;
+      this.batch       = new UmsatzBatch(pluginSettings.getInt("store.batch.size",100),pluginSettings.getBoolean("import.messages.bulk",false),this.filter,progress);
+      this.provisional = ProvisionalBookings.load(konto);
     }
     
-    ////////////////////////////////////////////////////////////////////////////
-    // Gegenkonto
-    final PayerInfo pi = t.payer_info;
-    HibiscusAddress e = (HibiscusAddress) de.willuhn.jameica.hbci.Settings.getDBService().createObject(HibiscusAddress.class,null);
-    
-    final String email = pi != null ? pi.email_address : null;
-    if (email != null)
-      e.setIban(email.substring(0, Math.min(40, email.length())));
-    
-    final PayerName pn = pi != null ? pi.payer_name : null;
-    if (pn != null)
+    /**
+     * @see de.willuhn.jameica.hbci.paypal.transport.TransactionHandler#handle(de.willuhn.jameica.hbci.paypal.domain.TransactionResult)
+     */
+    @Override
+    public void handle(TransactionResult page) throws ApplicationException
     {
-      String name = StringUtils.trimToNull(pn.alternate_full_name);
-      
-      if (name == null)
+      try
       {
-        StringBuilder sb = new StringBuilder();
-        if (pn.given_name != null)
-          sb.append(pn.given_name);
-        
-        if (pn.surname != null)
-        {
-          if (sb.length() > 0)
-            sb.append(" ");
-          sb.append(pn.surname);
-        }
-        
-        name = sb.toString();
+        this.apply(page);
       }
-      
-      if (name != null && name.length() > HBCIProperties.HBCI_TRANSFER_NAME_MAXLENGTH)
-        name = StringUtils.trimToEmpty(name.substring(0,HBCIProperties.HBCI_TRANSFER_NAME_MAXLENGTH));
-      e.setName(name);
-    }
-    
-    if (ec != null)
-    {
-      final StringBuilder ecDesc = new StringBuilder();
-      final String comment = umsatz.getKommentar();
-      if (comment != null)
-        ecDesc.append(comment);
-      
-      final String tcodeDesc = this.getTcodeDescription(ec,value);
-      if (tcodeDesc != null)
+      catch (ApplicationException | RuntimeException e)
       {
-        if (ecDesc.length() > 0)
-          ecDesc.append(" ");
-        ecDesc.append(tcodeDesc);
+        throw e;
       }
-
-      if (ecDesc.length() > 0)
-        umsatz.setKommentar(ecDesc.toString());
-
-      if (ec.startsWith("T04"))
+      catch (Exception e)
       {
-        e.setName(i18n.tr("Bankkonto"));
-        
-        if (ec.equals("T0400"))
-        {
-          usages.clear();
-          usages.add(i18n.tr("Abbuchung auf Bankkonto"));
-        }
-        else if (ec.equals("T0401"))
-        {
-          usages.clear();
-          usages.add(i18n.tr("Automatische Abbuchung auf Bankkonto"));
-        }
+        Logger.error("error while applying page",e);
+        throw new ApplicationException(i18n.tr("Fehler beim bernehmen der Umstze"),e);
       }
-      else if (ec.startsWith("T03"))
+    }
+    
+    /**
+     * Uebernimmt die Umsaetze der Seite.
+     * @param page die Seite.
+     * @throws Exception
+     */
+    private void apply(TransactionResult page) throws Exception
+    {
+      this.checkpoint.update(page);
+      if (page.transaction_details == null || page.transaction_details.isEmpty())
+        return;
+      
+      // Abgelehnte und stornierte Transaktionen verwirft der Converter. Gibt es dazu eine
+      // vorlaeufige Buchung aus einem Webhook, muss die wieder weg
+      for (TransactionDetails t : page.transaction_details)
       {
-        e.setName(i18n.tr("Bankkonto"));
-        
-        if (ec.equals("T0300"))
-        {
-          usages.clear();
-          usages.add(i18n.tr("Einzahlung vom Bankkonto"));
-        }
+        final TransactionInfo ti = t.transaction_info;
+        final String status = ti != null ? ti.transaction_status : null;
+        if (status != null && !Objects.equals("S",status) && !Objects.equals("P",status))
+          this.provisional.cancelled(ti.transaction_id,status);
       }
-      else if (ec.startsWith("T11"))
+      
+      // Die Konvertierung laeuft parallel und ohne Datenbank. Die Hibiscus-Datensaetze
+      // erzeugen wir erst hier, wenn wir sie fuer den Abgleich oder zum Speichern brauchen
+      final List<List<Booking>> converted = this.converter.convert(page.transaction_details);
+      if (this.progress != null)
+        this.progress.converted(page.transaction_details.size());
+      
+      for (List<Booking> bookings : converted)
       {
-        if (ec.equals("T1107"))
+        for (Booking b : bookings)
         {
-          if (StringUtils.trimToNull(ti.transaction_subject) != null)
-            umsatz.setKommentar(usages.remove(0));
+          // Eine vorlaeufige Buchung ist damit bestaetigt und wird unten ueber den Abgleich aktualisiert
+          final boolean provisional = this.provisional.contains(b.transactionId);
+          this.provisional.confirmed(b.transactionId);
           
-          if (!usages.isEmpty())
-            usages.add(0, i18n.tr("Rckzahlung ") + usages.remove(0));
-          else 
-            usages.add(0, i18n.tr("Rckzahlung "));
+          // Laut Filter sicher neu. Dann brauchen wir nicht in der Datenbank nachschauen.
+          // Die vorlaeufigen Buchungen aus dem Webhook kennt der Filter aber noch nicht
+          if (!provisional && this.filter != null && this.filter.isUsable() && !this.filter.mightContain(b.transactionId))
+          {
+            this.unchecked++;
+            this.batch.add(b.create(this.service,this.konto));
+            continue;
+          }
           
-          feeZweck = i18n.tr("Widerrufene ") + feeZweck;
-        } else if (ec.equals("T1105"))
-        {
-          usages.clear();
-          usages.add(i18n.tr("Aufhebung der Authorisierungssperre"));
-          if (!importAuthorizations) {
-            result.clear();
+          if (this.existing == null)
+          {
+            this.existing = UmsatzIndex.load(this.konto,this.mergeWindow);
+            Logger.info("applying entries, existing entries in merge window: " + this.existing.size());
           }
-        }
-      } else if (ec.equals("T1501"))
-      {
-          usages.clear();
-          usages.add(i18n.tr("Sperre fr Authorisierung"));
-          if (!importAuthorizations) {
-            result.clear();
+          
+          // Vorgemerkte Buchung, die inzwischen einen neuen Status hat. Die aktualisieren wir
+          final Umsatz current = this.existing.get(b.transactionId);
+          if (current != null && this.isTransition(current,b))
+          {
+            Logger.info("status of transaction id " + b.transactionId + " changed from " + current.getGvCode() + " to " + b.gvCode + ", updating");
+            
+            // Bei einer vorlaeufigen Buchung aus einem Webhook sind die Daten aus dem Reporting verbindlich
+            if (current.hasFlag(Umsatz.FLAG_NOTBOOKED))
+            {
+              b.update(this.service,current);
+            }
+            else
+            {
+              if (b.saldo != null)
+                current.setSaldo(b.saldo.doubleValue());
+              current.setKommentar(b.kommentar);
+              current.setGvCode(b.gvCode);
+            }
+            this.batch.update(current);
+            continue;
           }
+          
+          // Checken, ob wir den Umsatz schon haben
+          final Umsatz umsatz = b.create(this.service,this.konto);
+          if (this.existing.contains(umsatz))
+            this.skipped++; // Haben wir schon
+          else
+            this.batch.add(umsatz); // den Umsatz haben wir noch nicht, speichern!
+        }
       }
     }
     
-    
-    umsatz.setGegenkonto(e);
-    //
-    ////////////////////////////////////////////////////////////////////////////
-    
-    if (!usages.isEmpty())
-      VerwendungszweckUtil.applyCamt(umsatz,usages);
-    
-    
-    // Die Gebhren, falls vorhanden
-    if (ti.fee_amount != null)
+    /**
+     * Prueft, ob der existierende Umsatz eine vorgemerkte Buchung ist, die jetzt einen anderen Status hat.
+     * Ein Wechsel zurueck auf "vorgemerkt" wird ignoriert. Vorlaeufige Buchungen aus einem Webhook
+     * werden immer aktualisiert.
+     * @param current der existierende Umsatz.
+     * @param b die empfangene Buchung.
+     * @return true, wenn der existierende Umsatz aktualisiert werden soll.
+     * @throws RemoteException
+     */
+    private boolean isTransition(Umsatz current, Booking b) throws RemoteException
     {
-      e = (HibiscusAddress) de.willuhn.jameica.hbci.Settings.getDBService().createObject(HibiscusAddress.class,null);
-      e.setName("Paypal");
-      
-      Umsatz umsatz2 = (Umsatz) de.willuhn.jameica.hbci.Settings.getDBService().createObject(Umsatz.class,null);
-      result.add(umsatz2);
-      umsatz2.setTransactionId(ti.transaction_id + "-fee");
-      umsatz2.setArt(clean(ec) + "-fee");
-      umsatz2.setCustomerRef(t.payer_info != null ? t.payer_info.account_id : null);
-      umsatz2.setBetrag(ti.fee_amount.doubleValue());
-      umsatz2.setZweck(feeZweck);
-      umsatz2.setGegenkonto(e);
-      umsatz2.setKommentar("Fee for " + umsatz.getKommentar());
-      
-      Money saldo2 = ti.ending_balance;
-      if (saldo2 != null)
-        umsatz2.setSaldo(saldo2.doubleValue() + ti.fee_amount.doubleValue()); // Fee ist schon eine negative Zahl, daher sinkt der Saldo
-
-      umsatz2.setDatum(ti.transaction_updated_date);
-      umsatz2.setValuta(ti.transaction_updated_date);
+      if (current.hasFlag(Umsatz.FLAG_NOTBOOKED))
+        return true;
+      return Objects.equals("P",current.getGvCode()) && !Objects.equals("P",b.gvCode);
     }
-
-    return result;
-  }
-  
-  /**
-   * Entfernt Zeichen, die in den Strings nicht enthalten sein sollten.
-   * Typischerweise Zeilenumbrueche.
-   * @param s der String.
-   * @return der bereinigte String.
-   */
-  private static String clean(String s)
-  {
-    return HBCIProperties.replace(s,HBCIProperties.TEXT_REPLACEMENTS_UMSATZ);
-  }
-
-  /**
-   * Liefert das zu verwendende Saldo-Datum.
-   * @param k das Konto.
-   * @return das Saldo-Datum.
-   */
-  private Date getStartDate(Konto k) throws RemoteException
-  {
-    Date start = k.getSaldoDatum();
-    if (start != null)
+    
+    /**
+     * Speichert die noch offenen Umsaetze.
+     */
+    private void flush()
     {
-      // Checken, ob das Datum vielleicht in der Zukunft liegt. Das ist nicht zulaessig
-      if (start.after(new Date()))
-      {
-        Logger.warn("future start date " + start + " given. this is not allowed");
-        start = null;
-      }
+      this.batch.flush();
     }
     
-    if (start == null)
+    /**
+     * Liefert die Anzahl der neuen, aktualisierten und geloeschten Umsaetze.
+     * @return die Anzahl der neuen, aktualisierten und geloeschten Umsaetze.
+     */
+    private int getChanges()
     {
-      // Wir nehmen die letzten 360 Tage
-      Calendar cal = Calendar.getInstance();
-      cal.add(Calendar.DATE,-360);
-      start = cal.getTime();
+      return this.batch.getCreated() + this.batch.getUpdated() + this.provisional.getRemoved();
     }
-    else
+    
+    /**
+     * Schliesst die Uebernahme ab und meldet das Ergebnis.
+     * @param storeCheckpoint true, wenn der Checkpoint gespeichert werden soll.
+     * @throws RemoteException
+     */
+    private void finish(boolean storeCheckpoint) throws RemoteException
     {
-      // Umsaetze vom Vortrag erneut abrufen
-      start = new Date(start.getTime() - 24 * 60 * 60 * 1000L);
+      this.flush();
+      if (this.progress != null)
+        this.progress.finish();
+      
+      final List<UmsatzBatch.Failure> failures = this.batch.getFailures();
+      Logger.info("done. new entries: " + this.batch.getCreated() + ", updated entries: " + this.batch.getUpdated() + ", skipped entries (already in database): " + this.skipped + ", failed entries: " + failures.size() + ", new by filter: " + this.unchecked);
+      
+      if (this.filter != null)
+        this.filter.store();
+      
+      // Den Checkpoint nur weitersetzen, wenn alles uebernommen wurde. Sonst holen wir beim naechsten Mal alles nochmal
+      if (!failures.isEmpty())
+      {
+        Logger.warn("not all entries could be stored, keeping the current checkpoint");
+        this.konto.addToProtokoll(i18n.tr("{0} Umstze konnten nicht gespeichert werden",Integer.toString(failures.size())), Protokoll.TYP_ERROR);
+        Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("Nicht alle empfangenen Umstze konnten gespeichert werden. Bitte prfen Sie das System-Protokoll"),StatusBarMessage.TYPE_ERROR));
+      }
+      else if (storeCheckpoint)
+      {
+        this.checkpoint.store(this.konto);
+        
+        // Der Zeitraum wurde vollstaendig abgerufen. Was davor noch vorlaeufig ist, wurde nie bestaetigt
+        this.provisional.expire(this.window);
+      }
+      
+      if (this.provisional.getRemoved() > 0)
+        Logger.info("removed provisional entries (denied, reversed or never confirmed): " + this.provisional.getRemoved());
+      
+      // Im Sammel-Modus einmal am Ende Bescheid geben, dass sich das Konto geaendert hat
+      if (this.batch.isBulk() && this.getChanges() > 0)
+        Application.getMessagingFactory().sendMessage(new ObjectChangedMessage(this.konto));
     }
-    
-    start = DateUtil.startOfDay(start);
-    Logger.info("startdate: " + HBCI.LONGDATEFORMAT.format(start));
-    return start;
-  }
-
-  /**
-   * Ermittelt die Beschreibung fuer einen Paypal Transaktionscode.
-   * @param tcode der TCode.
-   * @param value der Betrag.
-   * @return die Beschreibung oder NULL, wenn keine gefunden wurde.
-   */
-  private String getTcodeDescription(String tcode, Money value)
-  {
-    if (value == null)
-      return null;
-    
-    final double d = value.doubleValue();
-    return (d >= 0.01) ? PaypalTcodes.getDebitDescription(tcode) : PaypalTcodes.getCreditDescription(tcode);
   }
 }
@@ -0,0 +1,188 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.jameica.hbci.Settings;
+import de.willuhn.jameica.hbci.messaging.ObjectDeletedMessage;
+import de.willuhn.jameica.hbci.rmi.HBCIDBService;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.logging.Logger;
+
+/**
+ * Die vorlaeufigen Buchungen eines Kontos, die per Webhook angelegt und vom Reporting noch
+ * nicht bestaetigt wurden. Liefert das Reporting eine davon als abgelehnt oder storniert,
+ * wird sie geloescht. Ebenso die vorlaeufigen Buchungen, die vor dem abgerufenen Zeitraum
+ * liegen und trotzdem nie bestaetigt wurden - die hat es dann nie gegeben.
+ */
+class ProvisionalBookings
+{
+  private final HBCIDBService service;
+  private final Map<String,Entry> byId = new HashMap<>();
+  private int removed = 0;
+
+  /**
+   * ct.
+   * @param service der Datenbank-Service.
+   */
+  private ProvisionalBookings(HBCIDBService service)
+  {
+    this.service = service;
+  }
+
+  /**
+   * Laedt die vorlaeufigen Buchungen des Kontos.
+   * @param k das Konto.
+   * @return die vorlaeufigen Buchungen.
+   * @throws RemoteException
+   */
+  static ProvisionalBookings load(Konto k) throws RemoteException
+  {
+    final HBCIDBService service = Settings.getDBService();
+    final ProvisionalBookings result = new ProvisionalBookings(service);
+
+    // Die Flags sind ein Bitfeld. Das pruefen wir hier statt im SQL, da das nicht in allen Datenbanken gleich geht
+    final String sql = "select id,txid,datum,flags from umsatz where konto_id = ? and txid is not null and flags >= ?";
+    service.execute(sql,new Object[]{Integer.valueOf(k.getID()),Integer.valueOf(Umsatz.FLAG_NOTBOOKED)},rs -> {
+      while (rs.next())
+      {
+        final String txid = StringUtils.trimToNull(rs.getString(2));
+        if (txid != null && (rs.getInt(4) & Umsatz.FLAG_NOTBOOKED) != 0)
+          result.byId.put(txid,new Entry(rs.getString(1),rs.getDate(3)));
+      }
+      return null;
+    });
+    
+    if (!result.byId.isEmpty())
+      Logger.info("unconfirmed provisional entries: " + result.byId.size());
+    return result;
+  }
+
+  /**
+   * Prueft, ob zu der Transaktions-ID eine unbestaetigte vorlaeufige Buchung existiert.
+   * @param txid die Transaktions-ID.
+   * @return true, wenn eine existiert.
+   */
+  boolean contains(String txid)
+  {
+    return txid != null && this.byId.containsKey(txid);
+  }
+
+  /**
+   * Wird aufgerufen, wenn das Reporting die Transaktion geliefert hat.
+   * Eine vorlaeufige Buchung dazu wird dann ueber den normalen Abgleich aktualisiert.
+   * @param txid die Transaktions-ID.
+   */
+  void confirmed(String txid)
+  {
+    if (txid != null)
+      this.byId.remove(txid);
+  }
+
+  /**
+   * Wird aufgerufen, wenn das Reporting die Transaktion als abgelehnt oder storniert geliefert hat.
+   * Eine vorlaeufige Buchung dazu wird geloescht.
+   * @param txid die Transaktions-ID.
+   * @param status der Status laut Reporting.
+   */
+  void cancelled(String txid, String status)
+  {
+    if (txid == null)
+      return;
+
+    final Entry e = this.byId.remove(txid);
+    if (e != null)
+      this.delete(txid,e,"status " + status);
+  }
+
+  /**
+   * Loescht die unbestaetigten vorlaeufigen Buchungen, die vor dem angegebenen Datum liegen.
+   * Darf nur nach einem vollstaendig erfolgreichen Abruf ab diesem Datum aufgerufen werden.
+   * @param start Beginn des abgerufenen Zeitraumes.
+   */
+  void expire(Date start)
+  {
+    if (start == null)
+      return;
+
+    for (Iterator<Map.Entry<String,Entry>> it = this.byId.entrySet().iterator(); it.hasNext();)
+    {
+      final Map.Entry<String,Entry> e = it.next();
+      final Date datum = e.getValue().datum;
+      if (datum == null || !datum.before(start))
+        continue;
+
+      it.remove();
+      this.delete(e.getKey(),e.getValue(),"never confirmed");
+    }
+  }
+
+  /**
+   * Liefert die Anzahl der geloeschten vorlaeufigen Buchungen.
+   * @return die Anzahl der geloeschten vorlaeufigen Buchungen.
+   */
+  int getRemoved()
+  {
+    return this.removed;
+  }
+
+  /**
+   * Loescht die vorlaeufige Buchung.
+   * @param txid die Transaktions-ID.
+   * @param e die vorlaeufige Buchung.
+   * @param reason der Grund fuer das Log.
+   */
+  private void delete(String txid, Entry e, String reason)
+  {
+    try
+    {
+      final Umsatz u = (Umsatz) this.service.createObject(Umsatz.class,e.id);
+      u.delete();
+      this.removed++;
+      Logger.info("deleted provisional entry for transaction id " + txid + " (" + reason + ")");
+      Application.getMessagingFactory().sendMessage(new ObjectDeletedMessage(u));
+    }
+    catch (Exception ex)
+    {
+      // Nicht weiterwerfen. Beim naechsten Abruf versuchen wir es erneut
+      Logger.error("unable to delete provisional entry for transaction id " + txid,ex);
+    }
+  }
+
+  /**
+   * Eine vorlaeufige Buchung.
+   */
+  private static class Entry
+  {
+    private final String id;
+    private final Date datum;
+
+    /**
+     * ct.
+     * @param id die ID des Datensatzes.
+     * @param datum das Datum. Kann NULL sein.
+     */
+    private Entry(String id, Date datum)
+    {
+      this.id    = id;
+      this.datum = datum;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.rmi.RemoteException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionDetails;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionInfo;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionResult;
+import de.willuhn.jameica.hbci.paypal.transport.TransportService;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.logging.Logger;
+
+/**
+ * Ermittelt waehrend eines Abrufs den Zeitpunkt, bis zu dem die Umsaetze vollstaendig
+ * vorliegen und speichert ihn im Konto. Der naechste Abruf beginnt dann dort.
+ */
+class SyncCheckpoint
+{
+  private Date refreshed = null;
+  private Date newest    = null;
+
+  /**
+   * Uebernimmt die Daten der empfangenen Seite.
+   * @param page die Seite.
+   */
+  void update(TransactionResult page)
+  {
+    if (page == null)
+      return;
+
+    // Paypal liefert die Buchungen mit Verzoegerung. Vollstaendig sind sie nur bis zum
+    // Zeitpunkt der letzten Aktualisierung. Wir nehmen den aeltesten aller Seiten.
+    final Date d = page.last_refreshed_datetime;
+    if (d != null && (this.refreshed == null || d.before(this.refreshed)))
+      this.refreshed = d;
+
+    if (page.transaction_details == null)
+      return;
+
+    for (TransactionDetails t:page.transaction_details)
+    {
+      final TransactionInfo ti = t.transaction_info;
+      if (ti == null || ti.transaction_updated_date == null)
+        continue;
+      if (this.newest == null || ti.transaction_updated_date.after(this.newest))
+        this.newest = ti.transaction_updated_date;
+    }
+  }
+
+  /**
+   * Liefert den ermittelten Checkpoint.
+   * @return der Checkpoint oder NULL, wenn keiner ermittelt werden konnte.
+   */
+  Date get()
+  {
+    // Ohne Aktualisierungszeitpunkt nehmen wir die neueste empfangene Buchung
+    Date d = this.refreshed != null ? this.refreshed : this.newest;
+    if (d == null)
+      return null;
+
+    final Date now = new Date();
+    return d.after(now) ? now : d;
+  }
+
+  /**
+   * Speichert den ermittelten Checkpoint im Konto.
+   * Darf nur nach einem vollstaendig erfolgreichen Abruf aufgerufen werden.
+   * @param k das Konto.
+   * @throws RemoteException
+   */
+  void store(Konto k) throws RemoteException
+  {
+    final Date d = this.get();
+    if (d == null)
+    {
+      Logger.info("no checkpoint determined, keeping the current one");
+      return;
+    }
+
+    Logger.info("new checkpoint: " + d);
+    k.setMeta(Plugin.META_PARAM_SYNC_CHECKPOINT,new SimpleDateFormat(TransportService.DF_ISO8601).format(d));
+  }
+
+  /**
+   * Liefert den gespeicherten Checkpoint des Kontos.
+   * @param k das Konto.
+   * @return der Checkpoint oder NULL, wenn keiner existiert oder er ungueltig ist.
+   * @throws RemoteException
+   */
+  static Date load(Konto k) throws RemoteException
+  {
+    final String s = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_SYNC_CHECKPOINT,null));
+    if (s == null)
+      return null;
+
+    try
+    {
+      final Date d = new SimpleDateFormat(TransportService.DF_ISO8601).parse(s);
+      if (d.after(new Date()))
+      {
+        Logger.warn("future checkpoint " + s + " given. this is not allowed");
+        return null;
+      }
+      return d;
+    }
+    catch (Exception e)
+    {
+      Logger.warn("invalid checkpoint " + s + ", ignoring");
+      return null;
+    }
+  }
+}
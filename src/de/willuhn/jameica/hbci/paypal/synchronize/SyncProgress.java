@@ -0,0 +1,202 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.paypal.transport.ProgressListener;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.I18N;
+import de.willuhn.util.ProgressMonitor;
+
+/**
+ * Meldet den Fortschritt der Synchronisierung eines Kontos an den Progress-Monitor.
+ * Der Fortschrittsbalken wird anhand der abgerufenen Zeitraeume und Seiten weitergesetzt,
+ * der Status-Text enthaelt den Durchsatz und die geschaetzte Restzeit. Damit ist auch bei
+ * einem langen Erst-Import erkennbar, dass die Synchronisierung noch laeuft.
+ */
+class SyncProgress implements ProgressListener
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+
+  private final ProgressMonitor monitor;
+  private final double share;
+  private final long interval;
+  private final long started = System.currentTimeMillis();
+
+  private final Map<Integer,int[]> pages = new HashMap<>();
+  private int windows = 0;
+  private int windowsDone = 0;
+  private long converted = 0L;
+  private long stored = 0L;
+  private int percent = 0;
+  private long lastUpdate = 0L;
+
+  /**
+   * ct.
+   * @param monitor der Progress-Monitor.
+   * @param share der Anteil in Prozent, um den der Fortschrittsbalken insgesamt weitergesetzt werden darf.
+   */
+  SyncProgress(ProgressMonitor monitor, double share)
+  {
+    this.monitor  = monitor;
+    this.share    = Math.max(0d,share);
+    this.interval = settings.getLong("progress.interval.ms",500L);
+  }
+
+  /**
+   * @see de.willuhn.jameica.hbci.paypal.transport.ProgressListener#windows(int)
+   */
+  @Override
+  public synchronized void windows(int count)
+  {
+    this.windows = count;
+    this.monitor.log(i18n.tr("Rufe {0} Zeitrume ab",Integer.toString(count)));
+  }
+
+  /**
+   * @see de.willuhn.jameica.hbci.paypal.transport.ProgressListener#page(int, int, int, int)
+   */
+  @Override
+  public synchronized void page(int window, int page, int pages, int items)
+  {
+    // Pro Zeitraum: Anzahl der Seiten, abgerufene Seiten, Anzahl der Transaktionen
+    final int[] w = this.pages.computeIfAbsent(window,k -> new int[3]);
+    w[0] = Math.max(w[0],pages);
+    w[1]++;
+    w[2] += items;
+
+    if (w[1] == w[0])
+    {
+      this.windowsDone++;
+      this.monitor.log(i18n.tr("Zeitraum {0}/{1} abgerufen: {2} Buchungen",Integer.toString(window + 1),Integer.toString(this.windows),Integer.toString(w[2])));
+    }
+
+    this.update(true);
+  }
+
+  /**
+   * Meldet konvertierte Buchungen.
+   * @param count die Anzahl der Buchungen.
+   */
+  synchronized void converted(int count)
+  {
+    this.converted += count;
+    this.update(false);
+  }
+
+  /**
+   * Meldet gespeicherte Buchungen.
+   * @param count die Anzahl der Buchungen.
+   */
+  synchronized void stored(int count)
+  {
+    this.stored += count;
+    this.update(false);
+  }
+
+  /**
+   * Schliesst die Fortschrittsanzeige ab und setzt den Fortschrittsbalken auf das Ende des Anteils.
+   */
+  synchronized void finish()
+  {
+    this.setPercent((int) this.share);
+    final long elapsed = Math.max(1L,System.currentTimeMillis() - this.started);
+    Logger.info("processed " + this.converted + " entries, stored " + this.stored + " in " + elapsed + " ms (" + this.getRate(elapsed) + " entries/s)");
+  }
+
+  /**
+   * Liefert den Anteil der bereits abgerufenen Seiten.
+   * Zeitraeume, deren erste Seite noch nicht da ist, zaehlen mit 0.
+   * @return der Anteil zwischen 0 und 1 oder -1, wenn er noch nicht bekannt ist.
+   */
+  private double getFraction()
+  {
+    if (this.windows <= 0)
+      return -1d;
+
+    double done = 0d;
+    for (int[] w:this.pages.values())
+    {
+      done += (double) w[1] / Math.max(1,w[0]);
+    }
+    return Math.min(1d,done / this.windows);
+  }
+
+  /**
+   * Liefert den Durchsatz.
+   * @param elapsed die bisherige Laufzeit in Millisekunden.
+   * @return die Anzahl der verarbeiteten Buchungen pro Sekunde.
+   */
+  private long getRate(long elapsed)
+  {
+    return Math.round(this.converted * 1000d / elapsed);
+  }
+
+  /**
+   * Aktualisiert Fortschrittsbalken und Status-Text.
+   * @param force true, wenn unabhaengig vom Intervall aktualisiert werden soll.
+   */
+  private void update(boolean force)
+  {
+    final long now = System.currentTimeMillis();
+    if (!force && now - this.lastUpdate < this.interval)
+      return;
+    this.lastUpdate = now;
+
+    final long elapsed = Math.max(1L,now - this.started);
+    final double fraction = this.getFraction();
+    if (fraction >= 0d)
+      this.setPercent((int) (this.share * fraction));
+
+    // Restzeit anhand des bisherigen Fortschritts hochrechnen
+    final String eta = fraction > 0d ? format(Math.round(elapsed * (1d - fraction) / fraction)) : i18n.tr("unbekannt");
+    this.monitor.setStatusText(i18n.tr("Zeitraum {0}/{1}: {2} Buchungen verarbeitet, {3} gespeichert ({4} Buchungen/s), Restzeit ca. {5}",
+        Integer.toString(Math.min(this.windowsDone + 1,Math.max(1,this.windows))),
+        Integer.toString(Math.max(1,this.windows)),
+        Long.toString(this.converted),
+        Long.toString(this.stored),
+        Long.toString(this.getRate(elapsed)),
+        eta));
+  }
+
+  /**
+   * Setzt den Fortschrittsbalken weiter.
+   * Da mehrere Konten gleichzeitig synchronisiert werden koennen, wird nur der
+   * Zuwachs gemeldet und nie ein absoluter Wert gesetzt.
+   * @param percent der Fortschritt innerhalb des Anteils.
+   */
+  private void setPercent(int percent)
+  {
+    if (percent <= this.percent)
+      return;
+    this.monitor.addPercentComplete(percent - this.percent);
+    this.percent = percent;
+  }
+
+  /**
+   * Formatiert die Dauer.
+   * @param millis die Dauer in Millisekunden.
+   * @return die formatierte Dauer.
+   */
+  private static String format(long millis)
+  {
+    final long seconds = millis / 1000L;
+    if (seconds >= 3600L)
+      return String.format("%d:%02d:%02d",seconds / 3600L,(seconds / 60L) % 60L,seconds % 60L);
+    return String.format("%d:%02d",seconds / 60L,seconds % 60L);
+  }
+}
@@ -0,0 +1,329 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.jameica.hbci.HBCIProperties;
+import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.paypal.domain.CartItemDetail;
+import de.willuhn.jameica.hbci.paypal.domain.Money;
+import de.willuhn.jameica.hbci.paypal.domain.PayerInfo;
+import de.willuhn.jameica.hbci.paypal.domain.PayerName;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionDetails;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionInfo;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.I18N;
+
+/**
+ * Konvertiert die Paypal-Transaktionen in Buchungen.
+ * Die Einstellungen des Kontos werden einmal pro Synchronisierung beim Erzeugen
+ * gelesen. Danach ist der Converter unveraenderlich und greift weder auf das Konto
+ * noch auf die Datenbank zu. Die Transaktionen einer Seite koennen daher parallel
+ * konvertiert werden.
+ */
+class TransactionConverter
+{
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+
+  private final static ForkJoinPool pool = new ForkJoinPool(Math.max(1,settings.getInt("convert.threads",Runtime.getRuntime().availableProcessors())));
+
+  private final boolean importAuthorizations;
+  private final int parallelMin;
+
+  /**
+   * ct.
+   * @param k das Konto.
+   * @throws RemoteException
+   */
+  TransactionConverter(Konto k) throws RemoteException
+  {
+    this.importAuthorizations = "true".equals(k.getMeta(Plugin.META_PARAM_IMPORT_AUTHORIZATIONS, "true"));
+    this.parallelMin = settings.getInt("convert.parallel.min",50);
+  }
+
+  /**
+   * Konvertiert die Transaktionen einer Seite.
+   * Ab "convert.parallel.min" Transaktionen erfolgt die Konvertierung parallel.
+   * Die Reihenfolge bleibt dabei erhalten.
+   * @param list die Transaktionen.
+   * @return die Buchungen pro Transaktion. Ist fuer eine Transaktion nichts zu uebernehmen, ist die Liste leer.
+   */
+  List<List<Booking>> convert(List<TransactionDetails> list)
+  {
+    if (list == null || list.isEmpty())
+      return Collections.emptyList();
+
+    if (list.size() < this.parallelMin)
+      return list.stream().map(this::convert).collect(Collectors.toList());
+
+    try
+    {
+      return pool.submit(() -> list.parallelStream().map(this::convert).collect(Collectors.toList())).get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException(e);
+    }
+    catch (ExecutionException e)
+    {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Konvertiert die Transaktion.
+   * @param t die Transaktion.
+   * @return die Buchungen. Ist nichts zu uebernehmen, ist die Liste leer.
+   */
+  List<Booking> convert(TransactionDetails t)
+  {
+    final TransactionInfo ti = t.transaction_info;
+    if (ti == null)
+    {
+      Logger.warn("received transaction-details w/o transaction-info - skipping");
+      return Collections.emptyList();
+    }
+    
+    final List<Booking> result = new ArrayList<>();
+
+    final String status = ti.transaction_status;
+    final String ec = ti.transaction_event_code;
+    String feeZweck = i18n.tr("Gebhren fr Transaktion {0}",ti.transaction_id);
+    
+    // Wir bernehmen Transaktionen nur, wenn sie den Status "S" oder "P" haben oder gar keinen
+    if (status != null && !Objects.equals("S",status) && !Objects.equals("P",status))
+    {
+      Logger.info("skipping denied/reversed transaction id " + ti.transaction_id + " (status: " + status + ")");
+      return Collections.emptyList();
+    }
+    
+    final Booking umsatz = new Booking();
+    result.add(umsatz);
+    umsatz.transactionId = ti.transaction_id;
+    umsatz.endToEndId = ti.transaction_id;
+    umsatz.art = clean(ec);
+    umsatz.customerRef = t.payer_info != null ? t.payer_info.account_id : null;
+    umsatz.gvCode = status;
+    
+    Money saldo = ti.ending_balance;
+    if (saldo != null)
+      umsatz.saldo = saldo.doubleValue();
+
+    Money value = ti.transaction_amount;
+    if (value != null)
+      umsatz.betrag = value.doubleValue();
+    
+    umsatz.datum = ti.transaction_updated_date;
+    umsatz.valuta = ti.transaction_updated_date;
+
+    final List<String> usages = umsatz.usages;
+    if (StringUtils.trimToNull(ti.transaction_subject) != null)
+      usages.add(ti.transaction_subject);
+    if (StringUtils.trimToNull(ti.transaction_note) != null && (StringUtils.trimToNull(ti.transaction_subject) == null || !ti.transaction_note.trim().equals(ti.transaction_subject.trim())))
+      usages.add(ti.transaction_note);
+    if (t.cart_info != null && t.cart_info.item_details != null && !t.cart_info.item_details.isEmpty())
+    {
+      for (CartItemDetail cd:t.cart_info.item_details)
+      {
+        if (StringUtils.trimToNull(cd.item_name) != null)
+        {
+          if (!usages.isEmpty())
+          {
+            if (!usages.contains(cd.item_name))
+              usages.add(", " + cd.item_name);
+          }
+          else
+            usages.add(cd.item_name);
+        }
+      }
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    // Gegenkonto
+    final PayerInfo pi = t.payer_info;
+    
+    final String email = pi != null ? pi.email_address : null;
+    if (email != null)
+      umsatz.gegenkontoIban = email.substring(0, Math.min(40, email.length()));
+    
+    final PayerName pn = pi != null ? pi.payer_name : null;
+    if (pn != null)
+    {
+      String name = StringUtils.trimToNull(pn.alternate_full_name);
+      
+      if (name == null)
+      {
+        StringBuilder sb = new StringBuilder();
+        if (pn.given_name != null)
+          sb.append(pn.given_name);
+        
+        if (pn.surname != null)
+        {
+          if (sb.length() > 0)
+            sb.append(" ");
+          sb.append(pn.surname);
+        }
+        
+        name = sb.toString();
+      }
+      
+      if (name != null && name.length() > HBCIProperties.HBCI_TRANSFER_NAME_MAXLENGTH)
+        name = StringUtils.trimToEmpty(name.substring(0,HBCIProperties.HBCI_TRANSFER_NAME_MAXLENGTH));
+      umsatz.gegenkontoName = name;
+    }
+    
+    if (ec != null)
+    {
+      final StringBuilder ecDesc = new StringBuilder();
+      final String comment = umsatz.kommentar;
+      if (comment != null)
+        ecDesc.append(comment);
+      
+      final String tcodeDesc = getTcodeDescription(ec,value);
+      if (tcodeDesc != null)
+      {
+        if (ecDesc.length() > 0)
+          ecDesc.append(" ");
+        ecDesc.append(tcodeDesc);
+      }
+
+      if (ecDesc.length() > 0)
+        umsatz.kommentar = ecDesc.toString();
+
+      if (ec.startsWith("T04"))
+      {
+        umsatz.gegenkontoName = i18n.tr("Bankkonto");
+        
+        if (ec.equals("T0400"))
+        {
+          usages.clear();
+          usages.add(i18n.tr("Abbuchung auf Bankkonto"));
+        }
+        else if (ec.equals("T0401"))
+        {
+          usages.clear();
+          usages.add(i18n.tr("Automatische Abbuchung auf Bankkonto"));
+        }
+      }
+      else if (ec.startsWith("T03"))
+      {
+        umsatz.gegenkontoName = i18n.tr("Bankkonto");
+        
+        if (ec.equals("T0300"))
+        {
+          usages.clear();
+          usages.add(i18n.tr("Einzahlung vom Bankkonto"));
+        }
+      }
+      else if (ec.startsWith("T11"))
+      {
+        if (ec.equals("T1107"))
+        {
+          if (StringUtils.trimToNull(ti.transaction_subject) != null)
+            umsatz.kommentar = usages.remove(0);
+          
+          if (!usages.isEmpty())
+            usages.add(0, i18n.tr("Rckzahlung ") + usages.remove(0));
+          else 
+            usages.add(0, i18n.tr("Rckzahlung "));
+          
+          feeZweck = i18n.tr("Widerrufene ") + feeZweck;
+        } else if (ec.equals("T1105"))
+        {
+          usages.clear();
+          usages.add(i18n.tr("Aufhebung der Authorisierungssperre"));
+          if (!this.importAuthorizations) {
+            result.clear();
+          }
+        }
+      } else if (ec.equals("T1501"))
+      {
+          usages.clear();
+          usages.add(i18n.tr("Sperre fr Authorisierung"));
+          if (!this.importAuthorizations) {
+            result.clear();
+          }
+      }
+    }
+    //
+    ////////////////////////////////////////////////////////////////////////////
+    
+    // Die Gebhren, falls vorhanden
+    if (ti.fee_amount != null)
+    {
+      final Booking umsatz2 = new Booking();
+      result.add(umsatz2);
+      umsatz2.transactionId = ti.transaction_id + "-fee";
+      umsatz2.art = clean(ec) + "-fee";
+      umsatz2.customerRef = t.payer_info != null ? t.payer_info.account_id : null;
+      umsatz2.betrag = ti.fee_amount.doubleValue();
+      umsatz2.zweck = feeZweck;
+      umsatz2.gegenkontoName = "Paypal";
+      umsatz2.kommentar = "Fee for " + umsatz.kommentar;
+      
+      Money saldo2 = ti.ending_balance;
+      if (saldo2 != null)
+        umsatz2.saldo = saldo2.doubleValue() + ti.fee_amount.doubleValue(); // Fee ist schon eine negative Zahl, daher sinkt der Saldo
+
+      umsatz2.datum = ti.transaction_updated_date;
+      umsatz2.valuta = ti.transaction_updated_date;
+    }
+
+    return result;
+  }
+  
+  /**
+   * Entfernt Zeichen, die in den Strings nicht enthalten sein sollten.
+   * Typischerweise Zeilenumbrueche.
+   * @param s der String.
+   * @return der bereinigte String.
+   */
+  private static String clean(String s)
+  {
+    return HBCIProperties.replace(s,HBCIProperties.TEXT_REPLACEMENTS_UMSATZ);
+  }
+
+  /**
+   * Ermittelt die Beschreibung fuer einen Paypal Transaktionscode.
+   * @param tcode der TCode.
+   * @param value der Betrag.
+   * @return die Beschreibung oder NULL, wenn keine gefunden wurde.
+   */
+  private static String getTcodeDescription(String tcode, Money value)
+  {
+    if (value == null)
+      return null;
+    
+    final double d = value.doubleValue();
+    return (d >= 0.01) ? PaypalTcodes.getDebitDescription(tcode) : PaypalTcodes.getCreditDescription(tcode);
+  }
+}
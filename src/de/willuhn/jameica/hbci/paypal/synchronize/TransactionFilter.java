@@ -0,0 +1,309 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.rmi.HBCIDBService;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+
+/**
+ * Bloom-Filter mit den Transaktions-IDs der bereits importierten Umsaetze eines Kontos.
+ * Liefert der Filter fuer eine ID "nicht enthalten", ist der Umsatz sicher neu und
+ * muss nicht mit der Datenbank abgeglichen werden. Bei "enthalten" kann es sich um
+ * einen Fehl-Treffer handeln, dann erfolgt der normale Abgleich.
+ * Der Filter wird im Arbeitsverzeichnis des Plugins gespeichert. Beim Laden wird
+ * anhand von Anzahl und hoechster ID der Umsaetze geprueft, ob er noch zur Datenbank
+ * passt - z.B. weil inzwischen Umsaetze geloescht wurden. Ist das nicht der Fall oder
+ * ist er aelter als "filter.rebuild.days", wird er neu aufgebaut.
+ */
+class TransactionFilter
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static int VERSION = 1;
+
+  private final File file;
+  private long created = System.currentTimeMillis();
+  private int count  = 0;
+  private long maxId = 0;
+  private boolean untagged = false;
+  private int hashes = 0;
+  private long[] bits = null;
+
+  /**
+   * ct.
+   * @param file die Datei des Filters.
+   */
+  private TransactionFilter(File file)
+  {
+    this.file = file;
+  }
+
+  /**
+   * Laedt den Filter fuer das Konto und baut ihn bei Bedarf neu auf.
+   * @param k das Konto.
+   * @return der Filter.
+   * @throws RemoteException
+   */
+  static TransactionFilter load(Konto k) throws RemoteException
+  {
+    final String workPath = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getWorkPath();
+    final TransactionFilter filter = new TransactionFilter(new File(new File(workPath,"filter"),k.getID() + ".bloom"));
+
+    final HBCIDBService service = de.willuhn.jameica.hbci.Settings.getDBService();
+    final long[] state = (long[]) service.execute("select count(id),max(id) from umsatz where konto_id = ?",new Object[]{Integer.valueOf(k.getID())},rs -> {
+      return rs.next() ? new long[]{rs.getLong(1),rs.getLong(2)} : new long[]{0L,0L};
+    });
+
+    final String reason = filter.read(state[0],state[1]);
+    if (reason != null)
+    {
+      Logger.info("rebuilding transaction filter (" + reason + ")");
+      filter.rebuild(service,k,state[0]);
+    }
+    return filter;
+  }
+
+  /**
+   * Liest den Filter aus der Datei und prueft, ob er noch aktuell ist.
+   * @param dbCount Anzahl der Umsaetze in der Datenbank.
+   * @param dbMaxId hoechste ID der Umsaetze in der Datenbank.
+   * @return der Grund fuer den Neuaufbau oder NULL, wenn der Filter verwendet werden kann.
+   */
+  private String read(long dbCount, long dbMaxId)
+  {
+    if (!this.file.isFile())
+      return "not found";
+
+    try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file))))
+    {
+      if (is.readInt() != VERSION)
+        return "unknown version";
+      this.created  = is.readLong();
+      this.count    = is.readInt();
+      this.maxId    = is.readLong();
+      this.untagged = is.readBoolean();
+      this.hashes   = is.readInt();
+      this.bits     = new long[is.readInt()];
+      for (int i = 0; i < this.bits.length; i++)
+      {
+        this.bits[i] = is.readLong();
+      }
+    }
+    catch (IOException e)
+    {
+      Logger.warn("unable to read transaction filter " + this.file + ": " + e.getMessage());
+      return "not readable";
+    }
+
+    if (this.count != dbCount || this.maxId != dbMaxId)
+      return "database changed, expected " + this.count + "/" + this.maxId + ", found " + dbCount + "/" + dbMaxId;
+
+    if (this.count > this.getCapacity())
+      return "capacity exceeded";
+
+    final long maxAge = settings.getLong("filter.rebuild.days",7L) * 24 * 60 * 60 * 1000L;
+    if (System.currentTimeMillis() - this.created > maxAge)
+      return "periodic verification";
+
+    return null;
+  }
+
+  /**
+   * Baut den Filter aus den Umsaetzen in der Datenbank neu auf.
+   * @param service der Datenbank-Service.
+   * @param k das Konto.
+   * @param dbCount Anzahl der Umsaetze in der Datenbank.
+   * @throws RemoteException
+   */
+  private void rebuild(HBCIDBService service, Konto k, long dbCount) throws RemoteException
+  {
+    // Platz fuer die doppelte Anzahl, damit der Filter nicht gleich wieder zu klein ist
+    final long capacity = Math.max(10000L,dbCount * 2L);
+    final double fpp = settings.getDouble("filter.fpp",0.01d);
+    final long size = Math.max(64L,(long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+
+    this.bits     = new long[(int) ((size + 63) / 64)];
+    this.hashes   = Math.max(1,(int) Math.round((double) this.bits.length * 64 / capacity * Math.log(2)));
+    this.created  = System.currentTimeMillis();
+    this.count    = 0;
+    this.maxId    = 0;
+    this.untagged = false;
+
+    service.execute("select id,txid from umsatz where konto_id = ?",new Object[]{Integer.valueOf(k.getID())},rs -> {
+      while (rs.next())
+      {
+        this.add(rs.getLong(1),rs.getString(2));
+      }
+      return null;
+    });
+    this.store();
+  }
+
+  /**
+   * Prueft, ob der Filter fuer die Abkuerzung des Abgleichs verwendet werden kann.
+   * Das ist nur moeglich, wenn alle Umsaetze des Kontos eine Transaktions-ID besitzen.
+   * Andernfalls koennten neue Buchungen inhaltlich einem Umsatz ohne ID entsprechen.
+   * @return true, wenn der Filter verwendet werden kann.
+   */
+  boolean isUsable()
+  {
+    return !this.untagged;
+  }
+
+  /**
+   * Prueft, ob die Transaktions-ID enthalten sein koennte.
+   * @param txid die Transaktions-ID.
+   * @return false, wenn die ID sicher nicht enthalten ist.
+   */
+  boolean mightContain(String txid)
+  {
+    txid = StringUtils.trimToNull(txid);
+    if (txid == null)
+      return true;
+
+    final long h1 = hash(txid,0x9E3779B97F4A7C15L);
+    final long h2 = hash(txid,0xC2B2AE3D27D4EB4FL) | 1L;
+    final long size = this.bits.length * 64L;
+    for (int i = 0; i < this.hashes; i++)
+    {
+      final long bit = Long.remainderUnsigned(h1 + i * h2,size);
+      if ((this.bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Uebernimmt einen gespeicherten Umsatz in den Filter.
+   * @param u der Umsatz.
+   * @throws RemoteException
+   */
+  synchronized void add(Umsatz u) throws RemoteException
+  {
+    final String id = u.getID();
+    this.add(id != null ? Long.parseLong(id) : 0L,u.getTransactionId());
+  }
+
+  /**
+   * Uebernimmt einen Umsatz in den Filter.
+   * @param id die ID des Datensatzes.
+   * @param txid die Transaktions-ID. Kann NULL sein.
+   */
+  private void add(long id, String txid)
+  {
+    this.count++;
+    this.maxId = Math.max(this.maxId,id);
+
+    txid = StringUtils.trimToNull(txid);
+    if (txid == null)
+    {
+      this.untagged = true;
+      return;
+    }
+
+    final long h1 = hash(txid,0x9E3779B97F4A7C15L);
+    final long h2 = hash(txid,0xC2B2AE3D27D4EB4FL) | 1L;
+    final long size = this.bits.length * 64L;
+    for (int i = 0; i < this.hashes; i++)
+    {
+      final long bit = Long.remainderUnsigned(h1 + i * h2,size);
+      this.bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Speichert den Filter.
+   * Die Datei wird erst nach dem vollstaendigen Schreiben ersetzt.
+   */
+  synchronized void store()
+  {
+    final File tmp = new File(this.file.getParentFile(),this.file.getName() + ".tmp");
+    try
+    {
+      final File dir = this.file.getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("unable to create " + dir);
+
+      try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+      {
+        os.writeInt(VERSION);
+        os.writeLong(this.created);
+        os.writeInt(this.count);
+        os.writeLong(this.maxId);
+        os.writeBoolean(this.untagged);
+        os.writeInt(this.hashes);
+        os.writeInt(this.bits.length);
+        for (long l:this.bits)
+        {
+          os.writeLong(l);
+        }
+      }
+
+      if (this.file.exists() && !this.file.delete())
+        throw new IOException("unable to delete " + this.file);
+      if (!tmp.renameTo(this.file))
+        throw new IOException("unable to rename " + tmp + " to " + this.file);
+    }
+    catch (IOException e)
+    {
+      // Nicht schlimm. Dann wird er beim naechsten Mal neu aufgebaut
+      Logger.error("unable to store transaction filter " + this.file,e);
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Liefert die Anzahl der IDs, fuer die der Filter ausgelegt ist.
+   * @return die Kapazitaet.
+   */
+  private long getCapacity()
+  {
+    final double fpp = settings.getDouble("filter.fpp",0.01d);
+    return (long) (this.bits.length * 64L * Math.log(2) * Math.log(2) / -Math.log(fpp));
+  }
+
+  /**
+   * Berechnet einen 64-Bit-Hash des Strings (FNV-1a mit abschliessender Durchmischung).
+   * @param s der String.
+   * @param seed Startwert.
+   * @return der Hash.
+   */
+  private static long hash(String s, long seed)
+  {
+    long h = 0xCBF29CE484222325L ^ seed;
+    for (byte b:s.getBytes(StandardCharsets.UTF_8))
+    {
+      h ^= (b & 0xff);
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,121 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.willuhn.jameica.hbci.paypal.domain.TransactionResult;
+import de.willuhn.jameica.hbci.paypal.transport.TransactionHandler;
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Puffer zwischen dem Abruf der Seiten und deren Verarbeitung.
+ * Der Abruf laeuft in einem eigenen Thread und legt die Seiten hier ab. Die
+ * Verarbeitung holt sie sich ab, sobald sie verfuegbar sind. Ist der Puffer voll,
+ * wartet der Abruf, bis wieder Platz ist. Damit bleibt der Speicherverbrauch
+ * unabhaengig von der Laenge des abgerufenen Zeitraumes.
+ */
+class TransactionPipeline implements TransactionHandler
+{
+  /**
+   * Markiert das Ende des Abrufs.
+   */
+  private final static TransactionResult END = new TransactionResult();
+
+  private final BlockingQueue<TransactionResult> queue;
+  private volatile boolean aborted = false;
+
+  /**
+   * ct.
+   * @param capacity maximale Anzahl der gepufferten Seiten.
+   */
+  TransactionPipeline(int capacity)
+  {
+    this.queue = new ArrayBlockingQueue<>(Math.max(1,capacity));
+  }
+
+  /**
+   * @see de.willuhn.jameica.hbci.paypal.transport.TransactionHandler#handle(de.willuhn.jameica.hbci.paypal.domain.TransactionResult)
+   */
+  @Override
+  public void handle(TransactionResult page) throws ApplicationException
+  {
+    if (page != null)
+      this.put(page);
+  }
+
+  /**
+   * Wird vom Abruf aufgerufen, wenn keine weiteren Seiten mehr kommen - egal ob erfolgreich oder nicht.
+   */
+  void finish()
+  {
+    try
+    {
+      this.put(END);
+    }
+    catch (OperationCanceledException oce)
+    {
+      // Die Verarbeitung wurde bereits abgebrochen. Dann wartet auch niemand mehr auf das Ende.
+    }
+  }
+
+  /**
+   * Liefert die naechste Seite und wartet ggf., bis sie vorliegt.
+   * @return die naechste Seite oder NULL, wenn der Abruf beendet ist.
+   */
+  TransactionResult take()
+  {
+    try
+    {
+      final TransactionResult page = this.queue.take();
+      return page == END ? null : page;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException(e);
+    }
+  }
+
+  /**
+   * Bricht die Verarbeitung ab. Ein ggf. wartender Abruf wird freigegeben.
+   */
+  void abort()
+  {
+    this.aborted = true;
+    this.queue.clear();
+  }
+
+  /**
+   * Legt die Seite in den Puffer und wartet ggf., bis wieder Platz ist.
+   * @param page die Seite.
+   */
+  private void put(TransactionResult page)
+  {
+    try
+    {
+      do
+      {
+        if (this.aborted)
+          throw new OperationCanceledException("processing of transactions aborted");
+      }
+      while (!this.queue.offer(page,500L,TimeUnit.MILLISECONDS));
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException(e);
+    }
+  }
+}
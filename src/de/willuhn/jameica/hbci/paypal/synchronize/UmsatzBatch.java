@@ -0,0 +1,310 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import de.willuhn.jameica.hbci.messaging.ImportMessage;
+import de.willuhn.jameica.hbci.messaging.ObjectChangedMessage;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Speichert die neuen und geaenderten Umsaetze blockweise in jeweils einer Datenbank-Transaktion.
+ * Fachlich ungueltige Umsaetze werden uebersprungen. Schlaegt das Speichern in der
+ * Datenbank fehl, wird der komplette Block zurueckgerollt. In beiden Faellen werden
+ * die betroffenen Umsaetze als Fehler gemeldet.
+ * Im Sammel-Modus wird statt einer {@link ImportMessage} pro Umsatz nur eine
+ * {@link ImportMessage} pro Block mit dem Konto gesendet. Consumer, die auf das Konto
+ * reagieren, laden dann neu. Consumer, die einzelne Umsaetze erwarten, sehen die
+ * Umsaetze im Sammel-Modus nicht.
+ */
+class UmsatzBatch
+{
+  private final int size;
+  private final boolean bulk;
+  private final TransactionFilter filter;
+  private final SyncProgress progress;
+  private final List<Umsatz> pending = new ArrayList<>();
+  private final Set<Umsatz> updates = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final List<Failure> failures = new ArrayList<>();
+  private int created = 0;
+  private int updated = 0;
+
+  /**
+   * ct.
+   * @param size Anzahl der Umsaetze pro Transaktion.
+   * @param bulk true, wenn die Benachrichtigungen gesammelt pro Block versendet werden sollen.
+   * @param filter optionaler Filter, in den die gespeicherten Umsaetze uebernommen werden.
+   * @param progress optionale Fortschrittsanzeige, an die jeder gespeicherte Block gemeldet wird.
+   */
+  UmsatzBatch(int size, boolean bulk, TransactionFilter filter, SyncProgress progress)
+  {
+    this.size     = Math.max(1,size);
+    this.bulk     = bulk;
+    this.filter   = filter;
+    this.progress = progress;
+  }
+
+  /**
+   * Fuegt einen neuen Umsatz hinzu. Ist der Block voll, wird er gespeichert.
+   * @param umsatz der Umsatz.
+   */
+  void add(Umsatz umsatz)
+  {
+    this.pending.add(umsatz);
+    if (this.pending.size() >= this.size)
+      this.flush();
+  }
+
+  /**
+   * Fuegt einen geaenderten, bereits existierenden Umsatz hinzu.
+   * @param umsatz der Umsatz.
+   */
+  void update(Umsatz umsatz)
+  {
+    this.updates.add(umsatz);
+    this.add(umsatz);
+  }
+
+  /**
+   * Speichert die noch offenen Umsaetze.
+   */
+  void flush()
+  {
+    if (this.pending.isEmpty())
+      return;
+
+    final List<Umsatz> chunk = new ArrayList<>(this.pending);
+    this.pending.clear();
+
+    final List<Umsatz> stored = new ArrayList<>(chunk.size());
+    final Umsatz first = chunk.get(0);
+    try
+    {
+      first.transactionBegin();
+      for (Umsatz u:chunk)
+      {
+        try
+        {
+          u.store();
+          stored.add(u);
+        }
+        catch (ApplicationException ae)
+        {
+          // Fachlicher Fehler vor dem Schreiben. Die Transaktion ist davon nicht betroffen
+          this.updates.remove(u);
+          this.fail(u,ae);
+        }
+      }
+      first.transactionCommit();
+    }
+    catch (Exception e)
+    {
+      Logger.error("error while storing " + chunk.size() + " entries, rolling back",e);
+      try
+      {
+        first.transactionRollback();
+      }
+      catch (Exception e2)
+      {
+        Logger.error("unable to rollback transaction",e2);
+      }
+
+      // Alles, was wir in dem Block schon gespeichert hatten, ist jetzt wieder weg
+      for (Umsatz u:chunk)
+      {
+        this.updates.remove(u);
+        if (!this.isFailed(u))
+          this.fail(u,e);
+      }
+      return;
+    }
+
+    if (this.progress != null)
+      this.progress.stored(stored.size());
+    
+    // Erst nach dem Commit Bescheid geben - vorher sind die Umsaetze fuer andere noch nicht sichtbar
+    for (Iterator<Umsatz> it = stored.iterator(); it.hasNext();)
+    {
+      final Umsatz u = it.next();
+      if (!this.updates.remove(u))
+        continue;
+      
+      it.remove();
+      this.updated++;
+      if (!this.bulk)
+        Application.getMessagingFactory().sendMessage(new ObjectChangedMessage(u));
+    }
+    
+    this.created += stored.size();
+    if (stored.isEmpty())
+      return;
+    
+    if (this.filter != null)
+    {
+      for (Umsatz u:stored)
+      {
+        try
+        {
+          this.filter.add(u);
+        }
+        catch (RemoteException re)
+        {
+          Logger.error("unable to add umsatz to transaction filter",re);
+        }
+      }
+    }
+    
+    if (this.bulk)
+    {
+      try
+      {
+        Application.getMessagingFactory().sendMessage(new ImportMessage(stored.get(0).getKonto()));
+      }
+      catch (RemoteException re)
+      {
+        Logger.error("unable to send import message for " + stored.size() + " entries",re);
+      }
+      return;
+    }
+    
+    for (Umsatz u:stored)
+    {
+      Application.getMessagingFactory().sendMessage(new ImportMessage(u));
+    }
+  }
+  
+  /**
+   * Prueft, ob die Benachrichtigungen gesammelt versendet werden.
+   * @return true, wenn die Benachrichtigungen gesammelt versendet werden.
+   */
+  boolean isBulk()
+  {
+    return this.bulk;
+  }
+
+  /**
+   * Liefert die Anzahl der gespeicherten Umsaetze.
+   * @return die Anzahl der gespeicherten Umsaetze.
+   */
+  int getCreated()
+  {
+    return this.created;
+  }
+
+  /**
+   * Liefert die Anzahl der aktualisierten Umsaetze.
+   * @return die Anzahl der aktualisierten Umsaetze.
+   */
+  int getUpdated()
+  {
+    return this.updated;
+  }
+
+  /**
+   * Liefert die Umsaetze, die nicht gespeichert werden konnten.
+   * @return die Liste der Fehler.
+   */
+  List<Failure> getFailures()
+  {
+    return Collections.unmodifiableList(this.failures);
+  }
+
+  /**
+   * Merkt sich den Fehler.
+   * @param u der Umsatz.
+   * @param e der Fehler.
+   */
+  private void fail(Umsatz u, Exception e)
+  {
+    final Failure f = new Failure(u,e);
+    Logger.error("error while adding umsatz " + f + ", skipping this one",e);
+    this.failures.add(f);
+  }
+
+  /**
+   * Prueft, ob fuer den Umsatz bereits ein Fehler vorliegt.
+   * @param u der Umsatz.
+   * @return true, wenn fuer den Umsatz bereits ein Fehler vorliegt.
+   */
+  private boolean isFailed(Umsatz u)
+  {
+    for (Failure f:this.failures)
+    {
+      if (f.umsatz == u)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Ein Umsatz, der nicht gespeichert werden konnte.
+   */
+  static class Failure
+  {
+    private final Umsatz umsatz;
+    private final Exception cause;
+
+    /**
+     * ct.
+     * @param umsatz der Umsatz.
+     * @param cause der Fehler.
+     */
+    private Failure(Umsatz umsatz, Exception cause)
+    {
+      this.umsatz = umsatz;
+      this.cause  = cause;
+    }
+
+    /**
+     * Liefert den Umsatz.
+     * @return der Umsatz.
+     */
+    Umsatz getUmsatz()
+    {
+      return this.umsatz;
+    }
+
+    /**
+     * Liefert den Fehler.
+     * @return der Fehler.
+     */
+    Exception getCause()
+    {
+      return this.cause;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+      try
+      {
+        return "[id: " + this.umsatz.getTransactionId() + ", date: " + this.umsatz.getDatum() + ", amount: " + this.umsatz.getBetrag() + "]";
+      }
+      catch (RemoteException re)
+      {
+        return String.valueOf(this.umsatz);
+      }
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.jameica.hbci.Settings;
+import de.willuhn.jameica.hbci.rmi.HBCIDBService;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.util.DateUtil;
+
+/**
+ * Index ueber die bereits vorhandenen Umsaetze fuer die Duplikat-Erkennung.
+ * Geladen werden nur die IDs sowie Betrag und Datum der Umsaetze. Statt fuer jede
+ * empfangene Buchung alle existierenden Umsaetze zu vergleichen, werden nur noch
+ * die Kandidaten mit gleicher Transaktions-ID bzw. gleichem Betrag und Datum
+ * vollstaendig geladen und per {@link Umsatz#equals(de.willuhn.datasource.GenericObject)}
+ * geprueft. Das Ergebnis ist damit das gleiche wie beim Vergleich mit allen Umsaetzen.
+ */
+class UmsatzIndex
+{
+  private final HBCIDBService service;
+  private final Map<String,List<String>> byId  = new HashMap<>();
+  private final Map<String,List<String>> byKey = new HashMap<>();
+  private int size = 0;
+
+  /**
+   * ct.
+   * @param service der Datenbank-Service.
+   */
+  private UmsatzIndex(HBCIDBService service)
+  {
+    this.service = service;
+  }
+
+  /**
+   * Laedt den Index fuer die Umsaetze des Kontos ab dem angegebenen Datum.
+   * @param k das Konto.
+   * @param from das Start-Datum. Kann NULL sein.
+   * @return der Index.
+   * @throws RemoteException
+   */
+  static UmsatzIndex load(Konto k, Date from) throws RemoteException
+  {
+    final HBCIDBService service = Settings.getDBService();
+    final UmsatzIndex index = new UmsatzIndex(service);
+
+    final List<Object> params = new ArrayList<>();
+    String sql = "select id,txid,betrag,datum from umsatz where konto_id = ?";
+    params.add(Integer.valueOf(k.getID()));
+    if (from != null)
+    {
+      sql += " and datum >= ?";
+      params.add(new java.sql.Date(DateUtil.startOfDay(from).getTime()));
+    }
+
+    service.execute(sql,params.toArray(),rs -> {
+      while (rs.next())
+      {
+        index.add(rs.getString(1),rs.getString(2),rs.getDouble(3),rs.getDate(4));
+      }
+      return null;
+    });
+    return index;
+  }
+
+  /**
+   * Fuegt einen existierenden Umsatz zum Index hinzu.
+   * @param id die ID des Datensatzes.
+   * @param txid die Transaktions-ID. Kann NULL sein.
+   * @param betrag der Betrag.
+   * @param datum das Datum. Kann NULL sein.
+   */
+  private void add(String id, String txid, double betrag, Date datum)
+  {
+    // Ueber die Transaktions-ID finden wir die Umsaetze direkt. Fehlt sie auf einer
+    // der beiden Seiten, koennen sie nur ueber den Inhalt gleich sein. Daher landen
+    // alle Umsaetze zusaetzlich im Index nach Betrag und Datum.
+    txid = StringUtils.trimToNull(txid);
+    if (txid != null)
+      this.byId.computeIfAbsent(txid,k -> new ArrayList<>(1)).add(id);
+    this.byKey.computeIfAbsent(key(betrag,datum),k -> new ArrayList<>(1)).add(id);
+    this.size++;
+  }
+
+  /**
+   * Prueft, ob der Umsatz bereits existiert.
+   * @param umsatz der zu pruefende Umsatz.
+   * @return true, wenn er bereits existiert.
+   * @throws RemoteException
+   */
+  boolean contains(Umsatz umsatz) throws RemoteException
+  {
+    final Set<String> candidates = new LinkedHashSet<>();
+    final String txid = StringUtils.trimToNull(umsatz.getTransactionId());
+    if (txid != null && this.byId.containsKey(txid))
+      candidates.addAll(this.byId.get(txid));
+
+    final List<String> list = this.byKey.get(key(umsatz.getBetrag(),umsatz.getDatum()));
+    if (list != null)
+      candidates.addAll(list);
+
+    for (String id:candidates)
+    {
+      final Umsatz u = (Umsatz) this.service.createObject(Umsatz.class,id);
+      if (u.equals(umsatz))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Liefert den existierenden Umsatz mit der angegebenen Transaktions-ID.
+   * @param txid die Transaktions-ID.
+   * @return der Umsatz oder NULL, wenn keiner existiert.
+   * @throws RemoteException
+   */
+  Umsatz get(String txid) throws RemoteException
+  {
+    txid = StringUtils.trimToNull(txid);
+    if (txid == null)
+      return null;
+
+    final List<String> ids = this.byId.get(txid);
+    if (ids == null || ids.isEmpty())
+      return null;
+    return (Umsatz) this.service.createObject(Umsatz.class,ids.get(0));
+  }
+
+  /**
+   * Liefert die Anzahl der Umsaetze im Index.
+   * @return die Anzahl der Umsaetze.
+   */
+  int size()
+  {
+    return this.size;
+  }
+
+  /**
+   * Liefert den Schluessel aus Betrag und Buchungstag.
+   * @param betrag der Betrag.
+   * @param datum das Datum. Kann NULL sein.
+   * @return der Schluessel.
+   */
+  private static String key(double betrag, Date datum)
+  {
+    return Math.round(betrag * 100d) + "/" + (datum != null ? DateUtil.startOfDay(datum).getTime() : "-");
+  }
+}
@@ -0,0 +1,502 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.synchronize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.rmi.RemoteException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.impl.bootstrap.HttpServer;
+import org.apache.hc.core5.http.impl.bootstrap.ServerBootstrap;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.Timeout;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import de.willuhn.annotation.Lifecycle;
+import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.datasource.rmi.DBService;
+import de.willuhn.datasource.rmi.ObjectNotFoundException;
+import de.willuhn.io.IOUtil;
+import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.paypal.domain.ApiAuth;
+import de.willuhn.jameica.hbci.paypal.domain.Money;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionDetails;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionInfo;
+import de.willuhn.jameica.hbci.paypal.domain.WebhookEvent;
+import de.willuhn.jameica.hbci.paypal.domain.WebhookResource;
+import de.willuhn.jameica.hbci.paypal.domain.WebhookVerification;
+import de.willuhn.jameica.hbci.paypal.transport.ApiException;
+import de.willuhn.jameica.hbci.paypal.transport.TransportService;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+import de.willuhn.util.I18N;
+
+/**
+ * Nimmt die Webhook-Ereignisse von Paypal entgegen und uebernimmt die Zahlungen sofort
+ * als vorlaeufige Umsaetze. Der naechste Abruf ueber das Reporting ersetzt sie durch die
+ * endgueltigen Daten.
+ * Der Listener ist per Default deaktiviert ("webhook.enabled") und lauscht nur auf
+ * localhost. Von aussen sollte er ueber einen Reverse-Proxy mit HTTPS erreichbar gemacht
+ * werden. Die URL des Webhooks lautet "/paypal/webhook/&lt;ID des Kontos&gt;". Die bei Paypal
+ * vergebene ID des Webhooks muss im Meta-Parameter {@link Plugin#META_PARAM_WEBHOOK_ID}
+ * des Kontos hinterlegt sein, damit die Signatur geprueft werden kann.
+ * Zum Testen kann die Pruefung mit "webhook.verify=false" abgeschaltet werden. Dann
+ * lassen sich aufgezeichnete Ereignisse z.Bsp. per
+ * "curl --data @event.json http://127.0.0.1:8765/paypal/webhook/1" einspielen. Das ist
+ * nur moeglich, solange der Listener auf localhost lauscht.
+ */
+@Lifecycle(Type.CONTEXT)
+public class WebhookService
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+  private final static ObjectMapper mapper = new ObjectMapper();
+  private final static ObjectReader reader = mapper.reader().with(DeserializationFeature.FAIL_ON_TRAILING_TOKENS);
+
+  private final static String PATH = "/paypal/webhook";
+
+  @Resource
+  private TransportService transportService = null;
+
+  private HttpServer server = null;
+
+  /**
+   * Startet den Listener.
+   */
+  @PostConstruct
+  private void init()
+  {
+    if (!settings.getBoolean("webhook.enabled",false))
+    {
+      Logger.info("webhook listener disabled");
+      return;
+    }
+
+    final String host = settings.getString("webhook.host","127.0.0.1");
+    final int port    = settings.getInt("webhook.port",8765);
+    try
+    {
+      final InetAddress address = InetAddress.getByName(host);
+      if (!settings.getBoolean("webhook.verify",true) && !address.isLoopbackAddress())
+      {
+        Logger.error("webhook signature verification disabled, refusing to listen on " + host);
+        return;
+      }
+
+      this.server = ServerBootstrap.bootstrap()
+          .setLocalAddress(address)
+          .setListenerPort(port)
+          .setSocketConfig(SocketConfig.custom().setSoTimeout(Timeout.ofSeconds(settings.getInt("webhook.timeout.seconds",30))).build())
+          .register(PATH + "/*",this::handle)
+          .create();
+      this.server.start();
+      Logger.info("webhook listener started on " + host + ":" + port + PATH);
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to start webhook listener on " + host + ":" + port,e);
+      this.server = null;
+    }
+  }
+
+  /**
+   * Beendet den Listener.
+   */
+  @PreDestroy
+  private void shutdown()
+  {
+    if (this.server == null)
+      return;
+
+    Logger.info("shutting down webhook listener");
+    try
+    {
+      this.server.close(CloseMode.GRACEFUL);
+    }
+    finally
+    {
+      this.server = null;
+    }
+  }
+
+  /**
+   * Verarbeitet ein empfangenes Ereignis.
+   * Paypal wiederholt die Zustellung, solange wir nicht mit 2xx antworten. Ereignisse,
+   * mit denen wir nichts anfangen koennen, werden daher trotzdem mit 200 bestaetigt.
+   * @param request der Request.
+   * @param response die Antwort.
+   * @param context der Kontext.
+   * @throws IOException
+   */
+  private void handle(ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context) throws IOException
+  {
+    if (!"POST".equalsIgnoreCase(request.getMethod()))
+    {
+      respond(response,HttpStatus.SC_METHOD_NOT_ALLOWED,"method not allowed");
+      return;
+    }
+
+    try
+    {
+      final String id = StringUtils.trimToNull(StringUtils.substringAfter(request.getUri().getPath(),PATH + "/"));
+      final Konto k = this.getKonto(id);
+      if (k == null)
+      {
+        Logger.warn("received webhook event for unknown account " + id);
+        respond(response,HttpStatus.SC_NOT_FOUND,"unknown account");
+        return;
+      }
+
+      final byte[] data = this.read(request.getEntity());
+      if (data == null)
+      {
+        respond(response,HttpStatus.SC_REQUEST_TOO_LONG,"request too large");
+        return;
+      }
+
+      // Genau ein JSON-Objekt. Das selbe Objekt lassen wir pruefen und uebernehmen es dann auch
+      final JsonNode node = reader.readTree(data);
+      if (node == null || !node.isObject())
+      {
+        respond(response,HttpStatus.SC_BAD_REQUEST,"invalid event");
+        return;
+      }
+      
+      if (!this.verify(k,request,node))
+      {
+        Logger.warn("invalid signature of webhook event for account " + k.getID());
+        respond(response,HttpStatus.SC_UNAUTHORIZED,"invalid signature");
+        return;
+      }
+
+      final WebhookEvent event = mapper.treeToValue(node,WebhookEvent.class);
+      final TransactionDetails t = this.toTransaction(event);
+      if (t == null)
+      {
+        Logger.info("ignoring webhook event " + event.id + " of type " + event.event_type);
+        respond(response,HttpStatus.SC_OK,"ignored");
+        return;
+      }
+
+      // Nicht parallel zu einer Synchronisierung des Kontos. Die haelt die Sperre ggf. laenger.
+      // Dann lassen wir Paypal das Ereignis spaeter nochmal zustellen.
+      final ReentrantLock lock = PaypalSynchronizeBackend.getLock(k);
+      if (!lock.tryLock(settings.getInt("webhook.lock.seconds",5),TimeUnit.SECONDS))
+      {
+        Logger.info("account " + k.getID() + " is currently synchronized, rejecting webhook event " + event.id);
+        respond(response,HttpStatus.SC_SERVICE_UNAVAILABLE,"account busy");
+        return;
+      }
+
+      try
+      {
+        final int created = this.store(k,t);
+        Logger.info("webhook event " + event.id + " of type " + event.event_type + " applied to account " + k.getID() + ", new entries: " + created);
+      }
+      finally
+      {
+        lock.unlock();
+      }
+      respond(response,HttpStatus.SC_OK,"ok");
+    }
+    catch (JsonProcessingException e)
+    {
+      Logger.warn("unable to parse webhook event: " + e.getMessage());
+      respond(response,HttpStatus.SC_BAD_REQUEST,"invalid event");
+    }
+    catch (URISyntaxException e)
+    {
+      respond(response,HttpStatus.SC_BAD_REQUEST,"invalid uri");
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      respond(response,HttpStatus.SC_SERVICE_UNAVAILABLE,"shutting down");
+    }
+    catch (Exception e)
+    {
+      Logger.error("error while processing webhook event",e);
+      respond(response,HttpStatus.SC_INTERNAL_SERVER_ERROR,"error");
+    }
+  }
+
+  /**
+   * Liefert das Paypal-Konto.
+   * @param id die ID des Kontos.
+   * @return das Konto oder NULL, wenn es nicht existiert oder kein Paypal-Konto ist.
+   * @throws RemoteException
+   */
+  private Konto getKonto(String id) throws RemoteException
+  {
+    if (id == null)
+      return null;
+
+    try
+    {
+      final Konto k = (Konto) de.willuhn.jameica.hbci.Settings.getDBService().createObject(Konto.class,id);
+      return Plugin.getStatus(k).checkSyncProvider() ? k : null;
+    }
+    catch (ObjectNotFoundException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Liest den Request.
+   * @param entity der Inhalt des Requests.
+   * @return die Daten oder NULL, wenn sie zu gross sind.
+   * @throws IOException
+   */
+  private byte[] read(HttpEntity entity) throws IOException
+  {
+    if (entity == null)
+      return new byte[0];
+
+    final int max = settings.getInt("webhook.maxbytes",1024 * 1024);
+    if (entity.getContentLength() > max)
+      return null;
+
+    final InputStream is = entity.getContent();
+    try
+    {
+      final byte[] buf = new byte[8192];
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      int read = 0;
+      while ((read = is.read(buf)) != -1)
+      {
+        bos.write(buf,0,read);
+        if (bos.size() > max)
+          return null;
+      }
+      return bos.toByteArray();
+    }
+    finally
+    {
+      IOUtil.close(is);
+    }
+  }
+
+  /**
+   * Laesst die Signatur des Ereignisses von Paypal pruefen.
+   * @param k das Konto.
+   * @param request der Request.
+   * @param event das Ereignis.
+   * @return true, wenn die Signatur gueltig ist oder die Pruefung deaktiviert ist.
+   * @throws RemoteException
+   * @throws ApplicationException
+   * @throws ApiException
+   */
+  private boolean verify(Konto k, ClassicHttpRequest request, JsonNode event) throws RemoteException, ApplicationException, ApiException
+  {
+    if (!settings.getBoolean("webhook.verify",true))
+    {
+      Logger.warn("webhook signature verification disabled, accepting event unchecked");
+      return true;
+    }
+
+    final String webhookId = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_WEBHOOK_ID,null));
+    if (webhookId == null)
+    {
+      Logger.warn("no webhook id configured for account " + k.getID());
+      return false;
+    }
+
+    final WebhookVerification v = new WebhookVerification();
+    v.auth_algo         = header(request,"PAYPAL-AUTH-ALGO");
+    v.cert_url          = header(request,"PAYPAL-CERT-URL");
+    v.transmission_id   = header(request,"PAYPAL-TRANSMISSION-ID");
+    v.transmission_sig  = header(request,"PAYPAL-TRANSMISSION-SIG");
+    v.transmission_time = header(request,"PAYPAL-TRANSMISSION-TIME");
+    v.webhook_id        = webhookId;
+    v.webhook_event     = event;
+    if (v.transmission_id == null || v.transmission_sig == null)
+      return false;
+
+    final ApiAuth auth = this.transportService.login(k);
+    return this.transportService.verifyWebhook(auth,v,this.transportService.createContext(k));
+  }
+
+  /**
+   * Bildet das Ereignis auf eine Transaktion ab, wie sie auch das Reporting liefert.
+   * Damit laeuft sie durch die selbe Konvertierung wie beim regulaeren Abruf.
+   * @param event das Ereignis.
+   * @return die Transaktion oder NULL, wenn das Ereignis nicht unterstuetzt wird.
+   */
+  private TransactionDetails toTransaction(WebhookEvent event)
+  {
+    if (event == null || event.resource == null || event.resource.amount == null || StringUtils.trimToNull(event.resource.id) == null)
+      return null;
+
+    // Zahlungen sind Gutschriften, Rueckzahlungen und Rueckbuchungen Belastungen
+    final String code;
+    boolean debit = false;
+    switch (StringUtils.trimToEmpty(event.event_type))
+    {
+      case "PAYMENT.CAPTURE.COMPLETED":
+      case "PAYMENT.CAPTURE.PENDING":
+        code = "T0006";
+        break;
+      case "PAYMENT.CAPTURE.REFUNDED":
+        code = "T1107";
+        debit = true;
+        break;
+      case "PAYMENT.CAPTURE.REVERSED":
+        code = "T1106";
+        debit = true;
+        break;
+      default:
+        return null;
+    }
+
+    final WebhookResource r = event.resource;
+    final Money amount = debit ? negate(r.amount) : r.amount;
+    if (amount == null || Double.isNaN(amount.doubleValue()))
+    {
+      Logger.warn("invalid amount in webhook event " + event.id);
+      return null;
+    }
+
+    final TransactionInfo ti = new TransactionInfo();
+    ti.transaction_id = r.id;
+    ti.transaction_event_code = code;
+    ti.transaction_status = "P"; // Vorlaeufig, bis das Reporting die Transaktion liefert
+    ti.transaction_amount = amount;
+    ti.invoice_id = r.invoice_id;
+    ti.custom_field = r.custom_id;
+    ti.transaction_subject = StringUtils.trimToNull(r.note_to_payer) != null ? r.note_to_payer : r.invoice_id;
+    ti.transaction_initiation_date = r.create_time;
+    ti.transaction_updated_date = r.update_time != null ? r.update_time : (r.create_time != null ? r.create_time : (event.create_time != null ? event.create_time : new Date()));
+
+    final TransactionDetails t = new TransactionDetails();
+    t.transaction_info = ti;
+    return t;
+  }
+
+  /**
+   * Speichert die Transaktion als vorlaeufigen Umsatz.
+   * Bereits vorhandene Transaktionen werden uebersprungen, da Paypal Ereignisse ggf. mehrfach zustellt.
+   * @param k das Konto.
+   * @param t die Transaktion.
+   * @return die Anzahl der neuen Umsaetze.
+   * @throws RemoteException
+   * @throws ApplicationException
+   */
+  private int store(Konto k, TransactionDetails t) throws RemoteException, ApplicationException
+  {
+    final DBService service = de.willuhn.jameica.hbci.Settings.getDBService();
+    final TransactionConverter converter = new TransactionConverter(k);
+
+    // Den Bloom-Filter aktualisieren wir hier nicht. Der erkennt beim naechsten Laden, dass Umsaetze hinzugekommen sind
+    final UmsatzBatch batch = new UmsatzBatch(settings.getInt("store.batch.size",100),false,null,null);
+    for (Booking b:converter.convert(t))
+    {
+      if (this.exists(service,k,b.transactionId))
+      {
+        Logger.info("transaction id " + b.transactionId + " already exists, skipping");
+        continue;
+      }
+      b.provisional = true;
+      batch.add(b.create(service,k));
+    }
+    batch.flush();
+
+    if (!batch.getFailures().isEmpty())
+      throw new ApplicationException(i18n.tr("Umsatz konnte nicht gespeichert werden"));
+    return batch.getCreated();
+  }
+
+  /**
+   * Prueft, ob im Konto bereits ein Umsatz mit der Transaktions-ID existiert.
+   * @param service der Datenbank-Service.
+   * @param k das Konto.
+   * @param txid die Transaktions-ID.
+   * @return true, wenn er existiert.
+   * @throws RemoteException
+   */
+  private boolean exists(DBService service, Konto k, String txid) throws RemoteException
+  {
+    return (Boolean) service.execute("select id from umsatz where konto_id = ? and txid = ?",new Object[]{Integer.valueOf(k.getID()),txid},rs -> rs.next());
+  }
+
+  /**
+   * Liefert den Betrag mit umgekehrtem Vorzeichen.
+   * @param m der Betrag.
+   * @return der negierte Betrag oder NULL, wenn er nicht lesbar ist.
+   */
+  private static Money negate(Money m)
+  {
+    try
+    {
+      final Money result = new Money();
+      result.currency_code = m.currency_code;
+      result.value = new BigDecimal(StringUtils.trimToEmpty(m.value)).negate().toPlainString();
+      return result;
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Liefert den Wert des Headers.
+   * @param request der Request.
+   * @param name der Name des Headers.
+   * @return der Wert oder NULL.
+   */
+  private static String header(ClassicHttpRequest request, String name)
+  {
+    final Header h = request.getFirstHeader(name);
+    return h != null ? StringUtils.trimToNull(h.getValue()) : null;
+  }
+
+  /**
+   * Sendet die Antwort.
+   * @param response die Antwort.
+   * @param status der HTTP-Status.
+   * @param text der Text.
+   */
+  private static void respond(ClassicHttpResponse response, int status, String text)
+  {
+    response.setCode(status);
+    response.setEntity(new StringEntity(text,ContentType.TEXT_PLAIN));
+  }
+}
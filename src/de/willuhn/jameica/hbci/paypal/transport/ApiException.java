@@ -12,6 +12,7 @@ package de.willuhn.jameica.hbci.paypal.transport;
 
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
 import de.willuhn.jameica.hbci.paypal.domain.ApiErrorDetails;
@@ -31,6 +32,12 @@ public class ApiException extends Exception
    * Die HTTP-Message.
    */
   public String httpMessage;
+  
+  /**
+   * Die vom Server per Retry-After gewuenschte Wartezeit in Millisekunden oder -1.
+   */
+  @JsonIgnore
+  public long retryAfter = -1;
 
   /**
    * Name des Fehlers.
@@ -0,0 +1,124 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hc.core5.concurrent.Cancellable;
+
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.logging.Logger;
+
+/**
+ * Signalisiert den Abbruch einer Synchronisierung.
+ * Wird vom Aufrufer erzeugt und ueber den {@link TransportContext} an den
+ * {@link TransportService} uebergeben. Beim Abbruch werden laufende Requests sofort
+ * abgebrochen und wartende Threads geweckt, statt erst nach dem naechsten Job
+ * oder dem Timeout des Requests.
+ */
+public class CancelToken
+{
+  private final Set<Cancellable> active = ConcurrentHashMap.newKeySet();
+  private volatile boolean cancelled = false;
+
+  /**
+   * Bricht die Synchronisierung ab.
+   */
+  public void cancel()
+  {
+    if (this.cancelled)
+      return;
+
+    this.cancelled = true;
+    Logger.info("synchronization cancelled, aborting " + this.active.size() + " active operation(s)");
+    for (Cancellable c:this.active)
+    {
+      c.cancel();
+    }
+    synchronized (this)
+    {
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * Prueft, ob die Synchronisierung abgebrochen wurde.
+   * @return true, wenn sie abgebrochen wurde.
+   */
+  public boolean isCancelled()
+  {
+    return this.cancelled;
+  }
+
+  /**
+   * Wirft eine OperationCanceledException, wenn die Synchronisierung abgebrochen wurde.
+   * @throws OperationCanceledException
+   */
+  public void check() throws OperationCanceledException
+  {
+    if (this.cancelled)
+      throw new OperationCanceledException("synchronization cancelled");
+  }
+
+  /**
+   * Wartet die angegebene Zeit oder bis die Synchronisierung abgebrochen wird.
+   * @param millis die Wartezeit in Millisekunden.
+   * @throws OperationCanceledException wenn die Synchronisierung waehrenddessen abgebrochen wurde.
+   */
+  public synchronized void sleep(long millis) throws OperationCanceledException
+  {
+    final long until = System.currentTimeMillis() + millis;
+    try
+    {
+      long wait = millis;
+      while (!this.cancelled && wait > 0L)
+      {
+        this.wait(wait);
+        wait = until - System.currentTimeMillis();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException(e);
+    }
+    this.check();
+  }
+
+  /**
+   * Registriert eine laufende Operation, die beim Abbruch abgebrochen werden soll.
+   * Wurde die Synchronisierung bereits abgebrochen, wird auch die Operation sofort abgebrochen.
+   * @param c die Operation.
+   * @throws OperationCanceledException wenn die Synchronisierung bereits abgebrochen wurde.
+   */
+  void register(Cancellable c) throws OperationCanceledException
+  {
+    this.active.add(c);
+
+    // Falls der Abbruch zwischen Pruefung und Registrierung kam
+    if (this.cancelled)
+    {
+      this.active.remove(c);
+      c.cancel();
+      this.check();
+    }
+  }
+
+  /**
+   * Entfernt die Registrierung der Operation wieder.
+   * @param c die Operation.
+   */
+  void unregister(Cancellable c)
+  {
+    this.active.remove(c);
+  }
+}
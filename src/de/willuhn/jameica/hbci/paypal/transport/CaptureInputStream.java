@@ -0,0 +1,88 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Input-Stream, der die ersten gelesenen Bytes fuer das Debug-Log mitschneidet.
+ */
+class CaptureInputStream extends FilterInputStream
+{
+  private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+  private final int limit;
+  private long count = 0;
+
+  /**
+   * ct.
+   * @param is der zu lesende Stream.
+   * @param limit maximale Anzahl der mitgeschnittenen Bytes.
+   */
+  CaptureInputStream(InputStream is, int limit)
+  {
+    super(is);
+    this.limit = limit;
+  }
+
+  /**
+   * @see java.io.FilterInputStream#read()
+   */
+  @Override
+  public int read() throws IOException
+  {
+    final int b = super.read();
+    if (b != -1)
+      this.capture(new byte[]{(byte) b},0,1);
+    return b;
+  }
+
+  /**
+   * @see java.io.FilterInputStream#read(byte[], int, int)
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    final int read = super.read(b,off,len);
+    if (read > 0)
+      this.capture(b,off,read);
+    return read;
+  }
+
+  /**
+   * Schneidet die Daten mit, solange das Limit noch nicht erreicht ist.
+   * @param b die Daten.
+   * @param off Offset.
+   * @param len Laenge.
+   */
+  private void capture(byte[] b, int off, int len)
+  {
+    this.count += len;
+    final int free = this.limit - this.bos.size();
+    if (free > 0)
+      this.bos.write(b,off,Math.min(free,len));
+  }
+
+  /**
+   * Liefert die mitgeschnittenen Daten.
+   * @return die mitgeschnittenen Daten.
+   */
+  String getCaptured()
+  {
+    final String s = new String(this.bos.toByteArray(),StandardCharsets.UTF_8);
+    if (this.count <= this.limit)
+      return s;
+    return s + "... (" + this.count + " bytes total)";
+  }
+}
@@ -0,0 +1,76 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input-Stream, der die gelesenen Bytes zaehlt.
+ */
+class CountingInputStream extends FilterInputStream
+{
+  private long count = 0;
+
+  /**
+   * ct.
+   * @param is der zu lesende Stream.
+   */
+  CountingInputStream(InputStream is)
+  {
+    super(is);
+  }
+
+  /**
+   * @see java.io.FilterInputStream#read()
+   */
+  @Override
+  public int read() throws IOException
+  {
+    final int b = super.read();
+    if (b != -1)
+      this.count++;
+    return b;
+  }
+
+  /**
+   * @see java.io.FilterInputStream#read(byte[], int, int)
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    final int read = super.read(b,off,len);
+    if (read > 0)
+      this.count += read;
+    return read;
+  }
+
+  /**
+   * @see java.io.FilterInputStream#skip(long)
+   */
+  @Override
+  public long skip(long n) throws IOException
+  {
+    final long skipped = super.skip(n);
+    this.count += skipped;
+    return skipped;
+  }
+
+  /**
+   * Liefert die Anzahl der bisher gelesenen Bytes.
+   * @return die Anzahl der bisher gelesenen Bytes.
+   */
+  long getCount()
+  {
+    return this.count;
+  }
+}
@@ -0,0 +1,34 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+/**
+ * Callback, ueber den der Fortschritt der Transaktionsabfrage gemeldet wird.
+ * Beim parallelen Abruf werden die Seiten in der Reihenfolge gemeldet, in der sie
+ * eintreffen - nicht zwingend in der Reihenfolge Zeitraum/Seite.
+ */
+public interface ProgressListener
+{
+  /**
+   * Wird einmalig aufgerufen, wenn die abzurufenden Zeitraeume feststehen.
+   * @param count die Anzahl der Zeitraeume.
+   */
+  void windows(int count);
+  
+  /**
+   * Wird fuer jede abgerufene Seite aufgerufen.
+   * @param window der Index des Zeitraumes, beginnend bei 0.
+   * @param page die Seite, beginnend bei 1.
+   * @param pages die Anzahl der Seiten des Zeitraumes.
+   * @param items die Anzahl der Transaktionen auf der Seite.
+   */
+  void page(int window, int page, int pages, int items);
+}
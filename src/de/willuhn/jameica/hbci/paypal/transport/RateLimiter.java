@@ -0,0 +1,155 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hc.core5.concurrent.Cancellable;
+
+import de.willuhn.jameica.system.OperationCanceledException;
+
+/**
+ * Token-Bucket fuer die Requests einer Client-ID.
+ * Alle Konten mit der selben Client-ID teilen sich den Bucket. Warten mehrere Konten
+ * gleichzeitig, werden die Tokens reihum an die Konten vergeben. Ein Konto mit vielen
+ * parallelen Abfragen kann die anderen damit nicht verdraengen.
+ */
+class RateLimiter
+{
+  private final double rate;
+  private final double burst;
+
+  private double tokens;
+  private long last = System.nanoTime();
+  private long blockedUntil = 0L;
+
+  private final Deque<String> turn = new ArrayDeque<>();
+  private final Map<String,Integer> waiting = new HashMap<>();
+
+  /**
+   * ct.
+   * @param rate Anzahl der Requests pro Sekunde.
+   * @param burst maximale Anzahl der Requests, die ohne Wartezeit direkt nacheinander moeglich sind.
+   */
+  RateLimiter(double rate, double burst)
+  {
+    this.rate   = rate;
+    this.burst  = Math.max(1d,burst);
+    this.tokens = this.burst;
+  }
+
+  /**
+   * Wartet, bis das Konto den naechsten Request senden darf.
+   * Wird die Synchronisierung abgebrochen, kehrt die Methode sofort mit einer
+   * OperationCanceledException zurueck.
+   * @param account das Konto.
+   * @param token das Abbruch-Signal der Synchronisierung.
+   */
+  synchronized void acquire(String account, CancelToken token)
+  {
+    final Cancellable wakeup = () -> {
+      synchronized (this)
+      {
+        this.notifyAll();
+      }
+      return true;
+    };
+    token.register(wakeup);
+    
+    if (this.waiting.merge(account,1,Integer::sum) == 1)
+      this.turn.addLast(account);
+
+    boolean done = false;
+    try
+    {
+      while (true)
+      {
+        token.check();
+        this.refill();
+        final long now = System.currentTimeMillis();
+        final boolean blocked = now < this.blockedUntil;
+        if (!blocked && this.tokens >= 1d && account.equals(this.turn.peekFirst()))
+        {
+          this.tokens -= 1d;
+          done = true;
+          return;
+        }
+
+        long wait = 0L;
+        if (blocked)
+          wait = this.blockedUntil - now;
+        else if (this.tokens < 1d)
+          wait = (long) Math.ceil((1d - this.tokens) * 1000d / this.rate);
+        else
+          wait = 100L; // Ein anderes Konto ist dran. Wir werden benachrichtigt, sobald es sein Token hat
+        this.wait(Math.max(1L,wait));
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException(e);
+    }
+    finally
+    {
+      token.unregister(wakeup);
+      this.leave(account,done);
+    }
+  }
+
+  /**
+   * Sperrt den Bucket fuer die angegebene Zeit.
+   * Wird aufgerufen, wenn Paypal trotzdem mit HTTP 429 antwortet.
+   * @param millis die Wartezeit in Millisekunden.
+   */
+  synchronized void block(long millis)
+  {
+    this.blockedUntil = Math.max(this.blockedUntil,System.currentTimeMillis() + millis);
+    this.tokens = 0d;
+  }
+
+  /**
+   * Nimmt das Konto aus der Warteschlange und gibt den naechsten Wartenden frei.
+   * @param account das Konto.
+   * @param served true, wenn das Konto ein Token erhalten hat.
+   */
+  private void leave(String account, boolean served)
+  {
+    final int count = this.waiting.get(account) - 1;
+    if (count == 0)
+    {
+      this.waiting.remove(account);
+      this.turn.remove(account);
+    }
+    else
+    {
+      this.waiting.put(account,count);
+      
+      // Ein Konto, das gerade bedient wurde, stellt sich mit seinen weiteren Requests hinten an
+      if (served && this.turn.remove(account))
+        this.turn.addLast(account);
+    }
+    this.notifyAll();
+  }
+
+  /**
+   * Fuellt den Bucket entsprechend der vergangenen Zeit auf.
+   */
+  private void refill()
+  {
+    final long now = System.nanoTime();
+    this.tokens = Math.min(this.burst,this.tokens + (now - this.last) / 1e9d * this.rate);
+    this.last = now;
+  }
+}
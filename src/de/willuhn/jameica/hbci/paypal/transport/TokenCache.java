@@ -0,0 +1,192 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.willuhn.jameica.hbci.paypal.domain.ApiAuth;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Cache fuer die OAuth-Tokens.
+ * Konten mit den selben Zugangsdaten teilen sich einen Token. Laufen mehrere
+ * Threads gleichzeitig auf einen abgelaufenen Token, wird das Login nur einmal
+ * ausgefuehrt. Die anderen warten auf das Ergebnis. Das Login selbst laeuft ausserhalb
+ * des Locks, damit {@link #invalidate(ApiAuth)} nicht hinter einem Login warten muss.
+ */
+class TokenCache
+{
+  private final Map<String,Slot> slots = new ConcurrentHashMap<>();
+
+  /**
+   * Liefert den Token aus dem Cache oder fuehrt das Login durch, wenn keiner
+   * vorhanden ist oder er demnaechst ablaeuft.
+   * @param key der Schluessel des Tokens.
+   * @param margin Anzahl der Sekunden vor Ablauf, ab denen der Token erneuert wird.
+   * @param loader fuehrt das eigentliche Login durch.
+   * @return der Token.
+   * @throws ApplicationException
+   * @throws ApiException
+   */
+  ApiAuth get(String key, long margin, Loader loader) throws ApplicationException, ApiException
+  {
+    final Slot slot = this.slots.computeIfAbsent(key,k -> new Slot());
+    final CompletableFuture<ApiAuth> pending;
+    boolean owner = false;
+    synchronized (slot)
+    {
+      if (isValid(slot.auth,margin))
+      {
+        Logger.debug("reusing cached access token");
+        return slot.auth;
+      }
+
+      if (slot.pending == null)
+      {
+        slot.auth = null;
+        slot.pending = new CompletableFuture<>();
+        owner = true;
+      }
+      pending = slot.pending;
+    }
+    
+    if (!owner)
+    {
+      Logger.debug("waiting for running login");
+      return await(pending);
+    }
+
+    try
+    {
+      final ApiAuth auth = loader.load();
+      synchronized (slot)
+      {
+        // Nur cachen, wenn wir wissen, wie lange er gueltig ist
+        if (auth != null && auth.expires_in > 0)
+          slot.auth = auth;
+        slot.pending = null;
+      }
+      pending.complete(auth);
+      return auth;
+    }
+    catch (Throwable t)
+    {
+      synchronized (slot)
+      {
+        slot.pending = null;
+      }
+      pending.completeExceptionally(t);
+      throw t;
+    }
+  }
+  
+  /**
+   * Wartet auf das Ergebnis eines laufenden Logins.
+   * @param pending das laufende Login.
+   * @return der Token.
+   * @throws ApplicationException
+   * @throws ApiException
+   */
+  private static ApiAuth await(CompletableFuture<ApiAuth> pending) throws ApplicationException, ApiException
+  {
+    try
+    {
+      return pending.join();
+    }
+    catch (CompletionException ce)
+    {
+      final Throwable cause = ce.getCause();
+      if (cause instanceof ApiException)
+        throw (ApiException) cause;
+      if (cause instanceof ApplicationException)
+        throw (ApplicationException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw ce;
+    }
+  }
+
+  /**
+   * Entfernt den Token aus dem Cache.
+   * Wird aufgerufen, wenn der Server den Token nicht mehr akzeptiert.
+   * @param auth der zu entfernende Token.
+   */
+  void invalidate(ApiAuth auth)
+  {
+    if (auth == null)
+      return;
+
+    for (Slot slot:this.slots.values())
+    {
+      synchronized (slot)
+      {
+        if (slot.auth != null && Objects.equals(slot.auth.access_token,auth.access_token))
+        {
+          Logger.info("invalidating cached access token");
+          slot.auth = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Leert den Cache.
+   */
+  void clear()
+  {
+    this.slots.clear();
+  }
+
+  /**
+   * Prueft, ob der Token noch mindestens die angegebene Zeit gueltig ist.
+   * @param auth der Token.
+   * @param margin Anzahl der Sekunden.
+   * @return true, wenn er noch gueltig ist.
+   */
+  private static boolean isValid(ApiAuth auth, long margin)
+  {
+    if (auth == null || auth.expires_in <= 0)
+      return false;
+
+    final long expiry = (auth.created + auth.expires_in - margin) * 1000L;
+    return expiry > System.currentTimeMillis();
+  }
+
+  /**
+   * Ein Eintrag im Cache.
+   */
+  private static class Slot
+  {
+    private ApiAuth auth = null;
+    private CompletableFuture<ApiAuth> pending = null;
+  }
+
+  /**
+   * Interface fuer das eigentliche Login.
+   */
+  interface Loader
+  {
+    /**
+     * Fuehrt das Login durch.
+     * @return der neue Token.
+     * @throws ApplicationException
+     * @throws ApiException
+     */
+    ApiAuth load() throws ApplicationException, ApiException;
+  }
+}
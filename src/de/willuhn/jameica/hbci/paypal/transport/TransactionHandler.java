@@ -0,0 +1,28 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import de.willuhn.jameica.hbci.paypal.domain.TransactionResult;
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Callback, an den die abgerufenen Seiten der Transaktionsabfrage uebergeben werden.
+ * Die Seiten werden in der Reihenfolge Zeitraum/Seite geliefert - auch wenn sie parallel abgerufen wurden.
+ */
+public interface TransactionHandler
+{
+  /**
+   * Wird fuer jede abgerufene Seite aufgerufen.
+   * @param page die Seite.
+   * @throws ApplicationException wenn die Verarbeitung abgebrochen werden soll.
+   */
+  void handle(TransactionResult page) throws ApplicationException;
+}
@@ -0,0 +1,121 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import de.willuhn.jameica.hbci.paypal.domain.ApiAuth;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionResult;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Iterator ueber die Seiten der Transaktionsabfrage.
+ * Paypal liefert maximal 30 Tage pro Abfrage und innerhalb dieser Zeitraeume
+ * nur eine begrenzte Anzahl von Transaktionen pro Seite. Der Iterator laeuft
+ * ueber alle Zeitraeume und alle Seiten und ruft die naechste Seite erst ab,
+ * wenn sie benoetigt wird.
+ */
+public class TransactionIterator
+{
+  private final TransportService service;
+  private final ApiAuth auth;
+  private final List<TransportService.Window> windows;
+  private final TransportContext ctx;
+
+  private int window = 0;
+  private int page = 0;
+  private int totalPages = 1;
+
+  /**
+   * ct.
+   * @param service der Transport-Service.
+   * @param auth der Zugang.
+   * @param windows die abzurufenden Zeitraeume.
+   * @param ctx der Kontext der Synchronisierung.
+   */
+  TransactionIterator(TransportService service, ApiAuth auth, List<TransportService.Window> windows, TransportContext ctx)
+  {
+    this.service = service;
+    this.auth    = auth;
+    this.windows = windows;
+    this.ctx     = ctx;
+  }
+
+  /**
+   * Prueft, ob weitere Seiten vorhanden sind.
+   * @return true, wenn weitere Seiten vorhanden sind.
+   */
+  public boolean hasNext()
+  {
+    if (this.window >= this.windows.size())
+      return false;
+
+    // Im aktuellen Zeitraum gibts noch Seiten
+    if (this.page < this.totalPages)
+      return true;
+
+    // Dann noch weitere Zeitraeume?
+    return this.window + 1 < this.windows.size();
+  }
+
+  /**
+   * Ruft die naechste Seite ab.
+   * @return die naechste Seite.
+   * @throws ApplicationException
+   * @throws ApiException
+   */
+  public TransactionResult next() throws ApplicationException, ApiException
+  {
+    if (!this.hasNext())
+      throw new NoSuchElementException();
+    
+    // Nach einem Abbruch keine weiteren Seiten mehr abrufen
+    this.ctx.getCancelToken().check();
+
+    // Naechster Zeitraum
+    if (this.page >= this.totalPages)
+    {
+      this.window++;
+      this.page = 0;
+      this.totalPages = 1;
+    }
+
+    this.page++;
+    final TransportService.Window w = this.windows.get(this.window);
+    final TransactionResult result = this.service.getTransactionPage(this.auth,w,this.page,this.ctx);
+
+    if (result == null || result.transaction_details == null || result.transaction_details.isEmpty())
+    {
+      // Keine Daten. Dann brauchen wir die weiteren Seiten des Zeitraumes nicht abrufen
+      this.totalPages = this.page;
+    }
+    else if (result.total_pages != null)
+    {
+      this.totalPages = Math.max(this.page,result.total_pages.intValue());
+      Logger.info("fetched page " + this.page + "/" + this.totalPages + " of window " + w + ", total items: " + result.total_items);
+    }
+    
+    this.ctx.firePage(this.window,this.page,result);
+
+    return result;
+  }
+
+  /**
+   * Liefert die Anzahl der Zeitraeume.
+   * @return die Anzahl der Zeitraeume.
+   */
+  public int getWindowCount()
+  {
+    return this.windows.size();
+  }
+}
@@ -0,0 +1,391 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionDetails;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionResult;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+import de.willuhn.util.I18N;
+
+/**
+ * Lokales Journal der von Paypal empfangenen Transaktionsseiten eines Kontos.
+ * Jeder erfolgreiche Abruf, der Transaktionen empfangen hat, schreibt die Seiten in der empfangenen
+ * Form in eine neue, per GZIP komprimierte Segment-Datei - eine Seite pro Zeile. Bestehende
+ * Segmente werden nie geaendert. Ueber {@link #replay(TransactionHandler)} koennen die Seiten
+ * spaeter ohne Zugriff auf Paypal erneut verarbeitet werden. Segmente, deren Transaktionen
+ * alle in neueren Segmenten enthalten sind, braucht das Replay nicht mehr. Sie werden nach
+ * jedem Abruf von {@link #compact()} geloescht.
+ */
+public class TransactionJournal
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+
+  private final static String SUFFIX         = ".json.gz";
+  private final static String SUFFIX_PARTIAL = ".part";
+
+  private final static ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+  private final static ObjectWriter writer = mapper.writerFor(TransactionResult.class);
+  private final static ObjectReader reader = mapper.readerFor(TransactionResult.class);
+
+  private final File dir;
+
+  /**
+   * ct.
+   * @param k das Konto.
+   * @throws RemoteException
+   */
+  public TransactionJournal(Konto k) throws RemoteException
+  {
+    final String workPath = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getWorkPath();
+    this.dir = new File(new File(workPath,"journal"),k.getID());
+  }
+
+  /**
+   * Liefert einen Handler, der jede Seite zuerst in das Journal schreibt und
+   * sie dann an den angegebenen Handler weiterreicht.
+   * Der Handler muss nach dem Abruf geschlossen werden.
+   * @param next der Handler fuer die Weiterverarbeitung.
+   * @return der Handler.
+   */
+  public Writer append(TransactionHandler next)
+  {
+    return new Writer(next);
+  }
+
+  /**
+   * Uebergibt alle Seiten des Journals an den Handler.
+   * Die Segmente werden vom neuesten zum aeltesten gelesen. Ist eine Transaktion in
+   * mehreren Segmenten enthalten, wird nur ihr neuester Stand uebergeben.
+   * @param handler der Handler.
+   * @throws ApplicationException
+   */
+  public void replay(TransactionHandler handler) throws ApplicationException
+  {
+    final List<File> segments = this.getSegments();
+    if (segments.isEmpty())
+      throw new ApplicationException(i18n.tr("Kein Journal fr dieses Konto vorhanden"));
+
+    Logger.info("replaying " + segments.size() + " journal segment(s) from " + this.dir);
+    final Set<String> seen = new HashSet<>();
+    int pages = 0;
+
+    for (int i = segments.size() - 1; i >= 0; i--)
+    {
+      final File f = segments.get(i);
+      try (InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(f))))
+      {
+        final MappingIterator<TransactionResult> it = reader.readValues(is);
+        while (it.hasNextValue())
+        {
+          final TransactionResult page = it.nextValue();
+          if (page.transaction_details != null)
+          {
+            for (Iterator<TransactionDetails> td = page.transaction_details.iterator(); td.hasNext();)
+            {
+              final TransactionDetails t = td.next();
+              final String id = t.transaction_info != null ? t.transaction_info.transaction_id : null;
+              if (id != null && !seen.add(id))
+                td.remove();
+            }
+          }
+          handler.handle(page);
+          pages++;
+        }
+      }
+      catch (IOException e)
+      {
+        Logger.error("unable to read journal segment " + f,e);
+        throw new ApplicationException(i18n.tr("Journal-Datei {0} nicht lesbar",f.getName()),e);
+      }
+    }
+    Logger.info("replayed " + pages + " page(s)");
+  }
+
+  /**
+   * Loescht die Segmente, die fuer das Replay nicht mehr benoetigt werden.
+   * Das sind die Segmente, deren Transaktionen alle auch in neueren Segmenten enthalten
+   * sind, sowie liegengebliebene Segmente abgebrochener Abrufe.
+   * Das neueste Segment bleibt immer erhalten.
+   */
+  public void compact()
+  {
+    final File[] partial = this.dir.listFiles((d,name) -> name.endsWith(SUFFIX + SUFFIX_PARTIAL));
+    if (partial != null)
+    {
+      for (File f:partial)
+      {
+        if (f.delete())
+          Logger.info("deleted incomplete journal segment " + f);
+      }
+    }
+    
+    final List<File> segments = this.getSegments();
+    final Set<String> seen = new HashSet<>();
+    int deleted = 0;
+    
+    for (int i = segments.size() - 1; i >= 0; i--)
+    {
+      final File f = segments.get(i);
+      boolean needed = (i == segments.size() - 1);
+      try (InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(f))))
+      {
+        final MappingIterator<TransactionResult> it = reader.readValues(is);
+        while (it.hasNextValue())
+        {
+          final TransactionResult page = it.nextValue();
+          if (page.transaction_details == null)
+            continue;
+          
+          for (TransactionDetails t:page.transaction_details)
+          {
+            final String id = t.transaction_info != null ? t.transaction_info.transaction_id : null;
+            
+            // Transaktionen ohne ID werden beim Replay immer uebergeben
+            if (id == null || seen.add(id))
+              needed = true;
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        // Im Zweifel behalten. Das Replay meldet den Fehler dann
+        Logger.error("unable to read journal segment " + f + ", keeping it",e);
+        continue;
+      }
+      
+      if (needed)
+        continue;
+      
+      if (f.delete())
+        deleted++;
+      else
+        Logger.warn("unable to delete journal segment " + f);
+    }
+    
+    if (deleted > 0)
+      Logger.info("deleted " + deleted + " superseded journal segment(s) from " + this.dir);
+  }
+
+  /**
+   * Liefert die abgeschlossenen Segmente in zeitlicher Reihenfolge.
+   * @return die Segmente.
+   */
+  private List<File> getSegments()
+  {
+    final File[] files = this.dir.listFiles((d,name) -> name.endsWith(SUFFIX));
+    if (files == null)
+      return new ArrayList<>();
+
+    // Die Dateinamen beginnen mit dem Zeitstempel. Damit ist die Sortierung chronologisch
+    Arrays.sort(files);
+    return Arrays.asList(files);
+  }
+
+  /**
+   * Schreibt die empfangenen Seiten in das Journal.
+   * Waehrend des Abrufs tragen die Segmente die Endung ".part" und werden erst
+   * mit {@link #close()} nach einem erfolgreichen Abruf umbenannt. Schlaegt der Abruf
+   * fehl, verwirft {@link #abort()} sie. Abgebrochene Segmente werden so nie gelesen.
+   * Seiten ohne Transaktionen werden nicht geschrieben. Wurde gar nichts empfangen,
+   * entsteht so auch kein Segment.
+   */
+  public class Writer implements TransactionHandler, Closeable
+  {
+    private final TransactionHandler next;
+    private final long maxBytes = settings.getLong("journal.segment.maxbytes",16 * 1024 * 1024L);
+    private final String prefix = String.format("%013d",System.currentTimeMillis());
+    private final List<File> parts = new ArrayList<>();
+
+    private int segment = 0;
+    private File file = null;
+    private OutputStream os = null;
+    private long written = 0;
+    private boolean done = false;
+
+    /**
+     * ct.
+     * @param next der Handler fuer die Weiterverarbeitung.
+     */
+    private Writer(TransactionHandler next)
+    {
+      this.next = next;
+    }
+
+    /**
+     * @see de.willuhn.jameica.hbci.paypal.transport.TransactionHandler#handle(de.willuhn.jameica.hbci.paypal.domain.TransactionResult)
+     */
+    @Override
+    public void handle(TransactionResult page) throws ApplicationException
+    {
+      this.write(page);
+      this.next.handle(page);
+    }
+
+    /**
+     * Schreibt die Seite in das aktuelle Segment.
+     * @param page die Seite.
+     * @throws ApplicationException
+     */
+    private synchronized void write(TransactionResult page) throws ApplicationException
+    {
+      if (page.transaction_details == null || page.transaction_details.isEmpty())
+        return;
+      
+      if (this.done)
+        throw new IllegalStateException("journal writer already closed");
+      
+      try
+      {
+        if (this.os != null && this.written >= this.maxBytes)
+          this.closeSegment();
+
+        if (this.os == null)
+        {
+          if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("unable to create " + dir);
+
+          this.file = new File(dir,this.prefix + "-" + String.format("%04d",++this.segment) + SUFFIX + SUFFIX_PARTIAL);
+          this.parts.add(this.file);
+          this.os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+          this.written = 0;
+        }
+
+        final byte[] data = writer.writeValueAsBytes(page);
+        this.os.write(data);
+        this.os.write('\n');
+        this.written += data.length + 1;
+      }
+      catch (IOException e)
+      {
+        Logger.error("unable to write journal",e);
+        throw new ApplicationException(i18n.tr("Schreiben des Journals fehlgeschlagen: {0}",e.getMessage()),e);
+      }
+    }
+
+    /**
+     * Schliesst das aktuelle Segment. Es behaelt die Endung ".part".
+     * @throws IOException
+     */
+    private void closeSegment() throws IOException
+    {
+      try
+      {
+        this.os.close();
+      }
+      finally
+      {
+        this.os = null;
+      }
+    }
+
+    /**
+     * Schliesst den Abruf erfolgreich ab.
+     * Erst jetzt werden die Segmente fuer das Replay freigegeben und aeltere Segmente kompaktiert.
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public synchronized void close()
+    {
+      if (this.done)
+        return;
+      
+      this.done = true;
+      if (this.parts.isEmpty())
+        return;
+
+      try
+      {
+        if (this.os != null)
+          this.closeSegment();
+        
+        for (File f:this.parts)
+        {
+          final String name = f.getName();
+          final File target = new File(dir,name.substring(0,name.length() - SUFFIX_PARTIAL.length()));
+          if (!f.renameTo(target))
+            throw new IOException("unable to rename " + f + " to " + target);
+          Logger.info("journal segment written: " + target);
+        }
+      }
+      catch (IOException e)
+      {
+        // Die restlichen Segmente bleiben als ".part" liegen und werden beim naechsten Kompaktieren geloescht
+        Logger.error("unable to close journal segment " + this.file,e);
+        return;
+      }
+      
+      compact();
+    }
+    
+    /**
+     * Verwirft alle Segmente dieses Abrufs, ohne sie fuer das Replay freizugeben.
+     * Wird aufgerufen, wenn der Abruf fehlgeschlagen ist oder abgebrochen wurde.
+     * Die bestehenden Segmente bleiben unveraendert, kompaktiert wird nicht.
+     */
+    public synchronized void abort()
+    {
+      if (this.done)
+        return;
+      
+      this.done = true;
+      if (this.os != null)
+      {
+        try
+        {
+          this.closeSegment();
+        }
+        catch (IOException e)
+        {
+          Logger.error("unable to close journal segment " + this.file,e);
+        }
+      }
+      
+      for (File f:this.parts)
+      {
+        if (f.delete())
+          Logger.info("journal segment discarded: " + f);
+        else
+          Logger.warn("unable to delete journal segment " + f);
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2022 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.paypal.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.willuhn.jameica.hbci.paypal.Plugin;
+import de.willuhn.jameica.hbci.paypal.domain.TransactionResult;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+
+/**
+ * Kontext einer Synchronisierung.
+ * Wird vom Aufrufer einmal pro Synchronisierung erzeugt und an alle Aufrufe des
+ * {@link TransportService} uebergeben.
+ */
+public class TransportContext
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+
+  private final AtomicInteger retryBudget;
+  private final AtomicInteger retries = new AtomicInteger();
+  
+  private RateLimiter limiter = null;
+  private String account = null;
+  private CancelToken token = new CancelToken();
+  private ProgressListener listener = null;
+
+  /**
+   * ct.
+   * Verwendet das in den Einstellungen konfigurierte Retry-Budget.
+   */
+  public TransportContext()
+  {
+    this(settings.getInt("http.retry.budget",20));
+  }
+
+  /**
+   * ct.
+   * @param retryBudget maximale Anzahl von Wiederholungen fuer die gesamte Synchronisierung.
+   */
+  public TransportContext(int retryBudget)
+  {
+    this.retryBudget = new AtomicInteger(retryBudget);
+  }
+
+  /**
+   * Reserviert eine Wiederholung aus dem Budget.
+   * @return true, wenn noch Budget vorhanden war.
+   */
+  boolean acquireRetry()
+  {
+    if (this.retryBudget.getAndDecrement() <= 0)
+    {
+      this.retryBudget.incrementAndGet();
+      return false;
+    }
+    this.retries.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Legt den Rate-Limiter fest, den sich alle Konten mit der selben Client-ID teilen.
+   * @param limiter der Rate-Limiter.
+   * @param account die Kennung des Kontos.
+   */
+  void setLimiter(RateLimiter limiter, String account)
+  {
+    this.limiter = limiter;
+    this.account = account;
+  }
+  
+  /**
+   * Legt das Abbruch-Signal der Synchronisierung fest.
+   * @param token das Abbruch-Signal.
+   */
+  void setCancelToken(CancelToken token)
+  {
+    this.token = token;
+  }
+  
+  /**
+   * Liefert das Abbruch-Signal der Synchronisierung.
+   * @return das Abbruch-Signal.
+   */
+  public CancelToken getCancelToken()
+  {
+    return this.token;
+  }
+  
+  /**
+   * Legt fest, an wen der Fortschritt der Transaktionsabfrage gemeldet wird.
+   * @param listener der Listener. Kann NULL sein.
+   */
+  public void setProgressListener(ProgressListener listener)
+  {
+    this.listener = listener;
+  }
+  
+  /**
+   * Meldet die Anzahl der abzurufenden Zeitraeume.
+   * @param count die Anzahl der Zeitraeume.
+   */
+  void fireWindows(int count)
+  {
+    if (this.listener != null)
+      this.listener.windows(count);
+  }
+  
+  /**
+   * Meldet eine abgerufene Seite.
+   * @param window der Index des Zeitraumes.
+   * @param page die Seite.
+   * @param result die abgerufene Seite.
+   */
+  void firePage(int window, int page, TransactionResult result)
+  {
+    if (this.listener == null)
+      return;
+    
+    final boolean empty = (result == null || result.transaction_details == null || result.transaction_details.isEmpty());
+    final int pages = (empty || result.total_pages == null) ? page : Math.max(page,result.total_pages.intValue());
+    this.listener.page(window,page,pages,empty ? 0 : result.transaction_details.size());
+  }
+  
+  /**
+   * Wartet, bis der naechste Request gesendet werden darf.
+   */
+  void acquireRequest()
+  {
+    this.token.check();
+    if (this.limiter != null)
+      this.limiter.acquire(this.account,this.token);
+  }
+  
+  /**
+   * Sperrt die Requests aller Konten der Client-ID fuer die angegebene Zeit.
+   * @param millis die Wartezeit in Millisekunden.
+   */
+  void blockRequests(long millis)
+  {
+    if (this.limiter != null)
+      this.limiter.block(millis);
+  }
+
+  /**
+   * Liefert die Anzahl der bisher durchgefuehrten Wiederholungen.
+   * @return die Anzahl der Wiederholungen.
+   */
+  public int getRetries()
+  {
+    return this.retries.get();
+  }
+}
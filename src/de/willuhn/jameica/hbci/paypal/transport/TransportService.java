@@ -16,17 +16,37 @@ import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -35,16 +55,33 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.entity.DeflateInputStream;
 import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.utils.DateUtils;
 import org.apache.hc.client5.http.utils.Base64;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
 import org.apache.hc.core5.net.URIBuilder;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import de.willuhn.annotation.Lifecycle;
 import de.willuhn.annotation.Lifecycle.Type;
@@ -55,10 +92,13 @@ import de.willuhn.jameica.hbci.paypal.domain.ApiAuth;
 import de.willuhn.jameica.hbci.paypal.domain.BalanceResult;
 import de.willuhn.jameica.hbci.paypal.domain.TransactionDetails;
 import de.willuhn.jameica.hbci.paypal.domain.TransactionResult;
+import de.willuhn.jameica.hbci.paypal.domain.WebhookVerification;
+import de.willuhn.jameica.hbci.paypal.domain.WebhookVerificationResult;
 import de.willuhn.jameica.hbci.rmi.Konto;
 import de.willuhn.jameica.system.Application;
 import de.willuhn.jameica.system.OperationCanceledException;
 import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Level;
 import de.willuhn.logging.Logger;
 import de.willuhn.util.ApplicationException;
 import de.willuhn.util.I18N;
@@ -75,8 +115,25 @@ public class TransportService
   public final static String DF_ISO8601 = "yyyy-MM-dd'T'HH:mm:ssX";
   public final static String DF_ISO8601_SALDO = "yyyy-MM-dd'T'HH:mm:ss";
   
+  /**
+   * Die Bloecke der Transaktionen, die wir bei Paypal abfragen.
+   * Die Konvertierung braucht nur die Transaktion selbst, den Zahler und den Warenkorb.
+   * Kann per "transactions.fields" erweitert werden, z.B. auf "all".
+   */
+  public final static String TRANSACTION_FIELDS = "transaction_info,payer_info,cart_info";
+  
+  private PoolingHttpClientConnectionManager connections = null;
   private CloseableHttpClient client = null;
+  private ExecutorService executor = null;
+  private ExecutorService asyncExecutor = null;
+  private ExecutorService streamExecutor = null;
   private final ObjectMapper mapper = new ObjectMapper();
+  private final Map<Class<?>,ObjectReader> readers = new ConcurrentHashMap<>();
+  private final TokenCache tokens = new TokenCache();
+  private final Map<String,RateLimiter> limiters = new ConcurrentHashMap<>();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong bytesDecoded = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
   
   /**
    * Initialisiert den Service.
@@ -85,7 +142,65 @@ public class TransportService
   private void init()
   {
     Logger.info("init paypal transport service");
-    this.client = HttpClients.createDefault();
+    
+    final int maxTotal    = settings.getInt("http.pool.max.total",20);
+    final int maxPerRoute = settings.getInt("http.pool.max.route",10);
+    final int connect     = settings.getInt("http.timeout.connect.seconds",15);
+    final int socket      = settings.getInt("http.timeout.socket.seconds",60);
+    final int response    = settings.getInt("http.timeout.response.seconds",60);
+    final int request     = settings.getInt("http.timeout.request.seconds",30);
+    final int ttl         = settings.getInt("http.pool.ttl.seconds",300);
+    final int keepAlive   = settings.getInt("http.keepalive.seconds",60);
+    final int idle        = settings.getInt("http.pool.idle.seconds",30);
+    Logger.info("http pool: max total " + maxTotal + ", max per route " + maxPerRoute + ", ttl " + ttl + "s, idle eviction " + idle + "s");
+    
+    this.connections = PoolingHttpClientConnectionManagerBuilder.create()
+        .setMaxConnTotal(maxTotal)
+        .setMaxConnPerRoute(maxPerRoute)
+        .setDefaultConnectionConfig(ConnectionConfig.custom()
+            .setConnectTimeout(Timeout.ofSeconds(connect))
+            .setSocketTimeout(Timeout.ofSeconds(socket))
+            .setTimeToLive(TimeValue.ofSeconds(ttl))
+            .setValidateAfterInactivity(TimeValue.ofSeconds(10))
+            .build())
+        .build();
+    
+    this.client = HttpClients.custom()
+        .setConnectionManager(this.connections)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectionRequestTimeout(Timeout.ofSeconds(request))
+            .setResponseTimeout(Timeout.ofSeconds(response))
+            .setConnectionKeepAlive(TimeValue.ofSeconds(keepAlive))
+            .build())
+        .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+        .evictExpiredConnections()
+        .evictIdleConnections(TimeValue.ofSeconds(idle))
+        .disableContentCompression() // Die Dekomprimierung machen wir selbst, damit wir die Bytes zaehlen koennen
+        .build();
+    
+    this.executor      = this.createExecutor("paypal-fetch",settings.getInt("transactions.fetch.threads",4));
+    this.asyncExecutor = this.createExecutor("paypal-async",settings.getInt("async.threads",4));
+    
+    // Der Abruf der Umsaetze belegt seinen Thread bis zur letzten Seite. Er bekommt daher
+    // einen eigenen Pool, damit kurze Aufrufe wie die Salden nicht dahinter warten muessen.
+    // Sind mehr Abrufe gleichzeitig gestartet als der Pool Threads hat, warten die uebrigen.
+    this.streamExecutor = this.createExecutor("paypal-stream",settings.getInt("async.stream.threads",4));
+  }
+  
+  /**
+   * Erzeugt einen Thread-Pool mit Daemon-Threads.
+   * @param name Praefix fuer die Thread-Namen.
+   * @param threads Anzahl der Threads.
+   * @return der Thread-Pool.
+   */
+  private ExecutorService createExecutor(String name, int threads)
+  {
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(Math.max(1,threads),r -> {
+      final Thread t = new Thread(r,name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
   }
   
   /**
@@ -97,16 +212,67 @@ public class TransportService
     Logger.info("shutting down paypal transport service");
     try
     {
+      if (this.asyncExecutor != null)
+        this.asyncExecutor.shutdownNow();
+      if (this.streamExecutor != null)
+        this.streamExecutor.shutdownNow();
+      if (this.executor != null)
+        this.executor.shutdownNow();
       IOUtil.close(this.client);
     }
     finally
     {
+      this.asyncExecutor = null;
+      this.streamExecutor = null;
+      this.executor = null;
       this.client = null;
+      this.connections = null;
+      this.tokens.clear();
+      this.limiters.clear();
     }
   }
   
+  /**
+   * Liefert die aktuelle Statistik des Connection-Pools.
+   * @return die Statistik oder NULL, wenn der Service nicht laeuft.
+   */
+  public PoolStats getPoolStats()
+  {
+    final PoolingHttpClientConnectionManager cm = this.connections;
+    return cm != null ? cm.getTotalStats() : null;
+  }
+  
+  /**
+   * Liefert die Anzahl der seit dem Start empfangenen Bytes, so wie sie ber die Leitung kamen.
+   * @return die Anzahl der empfangenen Bytes.
+   */
+  public long getBytesReceived()
+  {
+    return this.bytesReceived.get();
+  }
+  
+  /**
+   * Liefert die Anzahl der seit dem Start empfangenen Bytes nach der Dekomprimierung.
+   * @return die Anzahl der dekomprimierten Bytes.
+   */
+  public long getBytesDecoded()
+  {
+    return this.bytesDecoded.get();
+  }
+  
+  /**
+   * Liefert die Anzahl der seit dem Start wiederholten Requests.
+   * @return die Anzahl der wiederholten Requests.
+   */
+  public long getRetryCount()
+  {
+    return this.retries.get();
+  }
+  
   /**
    * Fhrt das Login fr das Konto durch.
+   * Ein noch gueltiger Token wird wiederverwendet. Konten mit der selben Client-ID
+   * und dem selben Secret teilen sich den Token.
    * @param konto das Konto.
    * @return das Ergebnis der Authentifizierung.
    * @throws ApplicationException wenn die Ausfhrung fehlschlug.
@@ -116,7 +282,6 @@ public class TransportService
   {
     try
     {
-      Logger.info("perfoming login");
       final String clientId = konto.getMeta(Plugin.META_PARAM_API_CLIENTID,null);
       final String secret   = konto.getMeta(Plugin.META_PARAM_API_SECRET,null);
       if (StringUtils.trimToNull(clientId) == null)
@@ -124,18 +289,25 @@ public class TransportService
       if (StringUtils.trimToNull(secret) == null)
         throw new ApplicationException(i18n.tr("Bitte geben Sie das API Secret in den Synchronisationsoptionen ein."));
       
-      final Map<String,String> params = new HashMap<>();
-      params.put("grant_type","client_credentials");
-      final HttpPost post = this.createPost(this.createUri("/v1/oauth2/token",null),params);
-      byte[] encodedAuth = Base64.encodeBase64((clientId + ":" + secret).getBytes(StandardCharsets.ISO_8859_1));
-      post.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + new String(encodedAuth));
-      
-      final ApiAuth auth = this.request(post,null,ApiAuth.class);
-      if (auth == null || StringUtils.trimToNull(auth.access_token) == null)
-        throw new ApplicationException("Login fehlgeschlagen");
+      final ApiEndpoint endpoint = this.getApiEndpoint();
+      final String key = endpoint.name() + ":" + clientId.trim() + ":" + this.hash(secret);
+      final long margin = settings.getLong("auth.token.refresh.seconds",300L);
       
-      Logger.info("login successful, token expiry: " + new Date(System.currentTimeMillis() + (auth.expires_in*1000L)));
-      return auth;
+      return this.tokens.get(key,margin,() -> {
+        Logger.info("perfoming login");
+        final Map<String,String> params = new HashMap<>();
+        params.put("grant_type","client_credentials");
+        final HttpPost post = this.createPost(this.createUri("/v1/oauth2/token",null),params);
+        byte[] encodedAuth = Base64.encodeBase64((clientId + ":" + secret).getBytes(StandardCharsets.ISO_8859_1));
+        post.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + new String(encodedAuth));
+        
+        final ApiAuth auth = this.request(post,null,ApiAuth.class,new TransportContext(0));
+        if (auth == null || StringUtils.trimToNull(auth.access_token) == null)
+          throw new ApplicationException("Login fehlgeschlagen");
+        
+        Logger.info("login successful, token expiry: " + new Date(System.currentTimeMillis() + (auth.expires_in*1000L)));
+        return auth;
+      });
     }
     catch (ApiException ae)
     {
@@ -156,6 +328,46 @@ public class TransportService
     }
   }
   
+  /**
+   * Erzeugt den Kontext fuer die Synchronisierung des Kontos.
+   * Alle Konten mit der selben Client-ID teilen sich einen Rate-Limiter, da sie bei
+   * Paypal auch das selbe Kontingent verbrauchen. Die Requests werden dabei reihum
+   * auf die Konten verteilt.
+   * @param konto das Konto.
+   * @return der Kontext.
+   * @throws RemoteException
+   */
+  public TransportContext createContext(Konto konto) throws RemoteException
+  {
+    return this.createContext(konto,new CancelToken());
+  }
+  
+  /**
+   * Erzeugt den Kontext fuer die Synchronisierung des Kontos.
+   * Wird das Abbruch-Signal ausgeloest, werden laufende Requests sofort abgebrochen,
+   * keine weiteren Zeitraeume und Seiten mehr abgerufen und die Aufrufe enden mit einer
+   * OperationCanceledException.
+   * @param konto das Konto.
+   * @param token das Abbruch-Signal.
+   * @return der Kontext.
+   * @throws RemoteException
+   */
+  public TransportContext createContext(Konto konto, CancelToken token) throws RemoteException
+  {
+    final TransportContext ctx = new TransportContext();
+    ctx.setCancelToken(token);
+    
+    final String clientId = StringUtils.trimToNull(konto.getMeta(Plugin.META_PARAM_API_CLIENTID,null));
+    final double rate = settings.getDouble("http.ratelimit.rate",5d);
+    if (clientId == null || rate <= 0d)
+      return ctx;
+    
+    final String key = this.getApiEndpoint().name() + ":" + clientId;
+    final RateLimiter limiter = this.limiters.computeIfAbsent(key,k -> new RateLimiter(rate,settings.getDouble("http.ratelimit.burst",10d)));
+    ctx.setLimiter(limiter,konto.getID());
+    return ctx;
+  }
+  
   /**
    * Liefert die Transaktionen fr den Zugang.
    * 
@@ -167,33 +379,251 @@ public class TransportService
    */
   public List<TransactionDetails> getTransactions(ApiAuth auth, Date start) throws ApplicationException, ApiException
   {
-    if (start == null)
-      throw new ApplicationException("Kein Startdatum angegeben");
-    List<TransactionDetails> result = new ArrayList<>();
-    ZonedDateTime startDate = start.toInstant().atZone(ZoneId.systemDefault());
-    do
+    return this.getTransactions(auth,start,1,new TransportContext());
+  }
+  
+  /**
+   * Liefert die Transaktionen fr den Zugang und ruft dabei mehrere Zeitraeume bzw. Seiten parallel ab.
+   * Die Reihenfolge der Transaktionen entspricht der beim sequentiellen Abruf.
+   * 
+   * @param auth     der Zugang.
+   * @param start    Start-Datum fr die Abfrage.
+   * @param parallel maximale Anzahl gleichzeitiger Abfragen. Bei 1 erfolgt der Abruf sequentiell.
+   * @param ctx      der Kontext der Synchronisierung.
+   * @return die Liste der Transaktionen.
+   * @throws ApplicationException wenn die Ausfhrung fehlschlug.
+   * @throws ApiException         wenn die Ausfhrung fehlschlug.
+   */
+  public List<TransactionDetails> getTransactions(ApiAuth auth, Date start, int parallel, TransportContext ctx) throws ApplicationException, ApiException
+  {
+    final List<TransactionDetails> result = new ArrayList<>();
+    this.getTransactions(auth,start,parallel,ctx,page -> {
+      if (page != null && page.transaction_details != null)
+        result.addAll(page.transaction_details);
+    });
+    return result;
+  }
+  
+  /**
+   * Ruft die Transaktionen ab und uebergibt sie seitenweise an den Handler, sobald sie vorliegen.
+   * Auch beim parallelen Abruf werden die Seiten in der Reihenfolge Zeitraum/Seite uebergeben.
+   * Es werden nie mehr als etwa doppelt so viele Seiten wie parallele Abfragen
+   * gleichzeitig im Speicher gehalten.
+   * 
+   * @param auth     der Zugang.
+   * @param start    Start-Datum fr die Abfrage.
+   * @param parallel maximale Anzahl gleichzeitiger Abfragen. Bei 1 erfolgt der Abruf sequentiell.
+   * @param ctx      der Kontext der Synchronisierung.
+   * @param handler  der Handler fuer die Seiten.
+   * @throws ApplicationException wenn die Ausfhrung fehlschlug.
+   * @throws ApiException         wenn die Ausfhrung fehlschlug.
+   */
+  public void getTransactions(ApiAuth auth, Date start, int parallel, TransportContext ctx, TransactionHandler handler) throws ApplicationException, ApiException
+  {
+    if (parallel <= 1)
     {
-      final Map<String, String> params = new HashMap<>();
-      params.put("start_date", startDate.format(DateTimeFormatter.ofPattern(DF_ISO8601)));
-      if (startDate.plusDays(30).isAfter(ZonedDateTime.now()))
-      {
-	params.put("end_date", ZonedDateTime.now().format(DateTimeFormatter.ofPattern(DF_ISO8601)));
-      } else
+      final TransactionIterator it = this.getTransactionPages(auth,start,ctx);
+      while (it.hasNext())
       {
-	params.put("end_date", startDate.plusDays(30).format(DateTimeFormatter.ofPattern(DF_ISO8601)));
+        handler.handle(it.next());
       }
-      params.put("balance_affecting_records_only", "Y");
-      params.put("fields", "all");
-      params.put("page", "1");
-      params.put("page_size", "500");
-      final HttpGet get = this.createGet(this.createUri("/v1/reporting/transactions", params));
-      TransactionResult transactionResult = request(get, auth, TransactionResult.class);
-      if (transactionResult != null && transactionResult.transaction_details != null)
+      return;
+    }
+
+    if (start == null)
+      throw new ApplicationException("Kein Startdatum angegeben");
+    
+    final List<Window> windows = this.createWindows(start);
+    Logger.info("fetching " + windows.size() + " window(s), max. parallel requests: " + parallel);
+    ctx.fireWindows(windows.size());
+    
+    // Die Seiten werden ueber einen Schluessel aus Zeitraum und Seite identifiziert. Die Sortierung
+    // des Schluessels entspricht der Reihenfolge, in der wir die Seiten an den Handler liefern.
+    // Die erste Seite jedes Zeitraumes ist von Anfang an bekannt. Die restlichen kennen wir erst,
+    // wenn die erste Seite des Zeitraumes da ist.
+    final PriorityQueue<Long> pending = new PriorityQueue<>();
+    for (int i=0;i<windows.size();++i)
+      pending.add(key(i,1));
+    
+    final int[] pageCount = new int[windows.size()];
+    final Map<Long,TransactionResult> buffer = new HashMap<>();
+    final CompletionService<Object[]> cs = new ExecutorCompletionService<>(this.executor);
+    final Set<Future<Object[]>> futures = new HashSet<>();
+    final int limit = parallel * 2;
+    long expected = key(0,1);
+    int running = 0;
+    
+    try
+    {
+      while (true)
       {
-	result.addAll(transactionResult.transaction_details);
+        ctx.getCancelToken().check();
+        
+        // Alles an den Handler liefern, was in der richtigen Reihenfolge vorliegt
+        while (buffer.containsKey(expected))
+        {
+          handler.handle(buffer.remove(expected));
+          final int w = window(expected);
+          expected = page(expected) < pageCount[w] ? key(w,page(expected) + 1) : key(w + 1,1);
+        }
+        
+        if (window(expected) >= windows.size())
+          break;
+        
+        // Auffuellen, solange das Limit nicht erreicht ist. Die als naechstes erwartete
+        // Seite wird immer abgerufen, auch wenn der Puffer voll ist. Sonst kaemen wir nicht weiter.
+        while (!pending.isEmpty() && running < parallel && (running + buffer.size() < limit || pending.peek().longValue() == expected))
+        {
+          ctx.getCancelToken().check();
+          final long key = pending.poll();
+          final Window w = windows.get(window(key));
+          futures.add(cs.submit(() -> new Object[]{key,this.getTransactionPage(auth,w,page(key),ctx)}));
+          running++;
+        }
+        
+        if (running == 0)
+          throw new IllegalStateException("no running request, but page " + page(expected) + " of window " + window(expected) + " missing");
+        
+        // Auf die naechste fertige Seite warten
+        final Future<Object[]> f = cs.take();
+        futures.remove(f);
+        running--;
+        final Object[] done = f.get();
+        final long key = (Long) done[0];
+        final TransactionResult r = (TransactionResult) done[1];
+        buffer.put(key,r);
+        ctx.firePage(window(key),page(key),r);
+        
+        if (page(key) == 1)
+        {
+          final int w = window(key);
+          final boolean empty = (r == null || r.transaction_details == null || r.transaction_details.isEmpty());
+          pageCount[w] = (empty || r.total_pages == null) ? 1 : Math.max(1,r.total_pages.intValue());
+          for (int p=2;p<=pageCount[w];++p)
+            pending.add(key(w,p));
+          if (pageCount[w] > 1)
+            Logger.info("window " + windows.get(w) + " has " + pageCount[w] + " pages, total items: " + r.total_items);
+        }
       }
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException(ie);
+    }
+    catch (ExecutionException ee)
+    {
+      final Throwable cause = ee.getCause();
+      if (cause instanceof ApiException)
+        throw (ApiException) cause;
+      if (cause instanceof ApplicationException)
+        throw (ApplicationException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      Logger.error("unable to fetch transactions",cause);
+      throw new ApplicationException(i18n.tr("Fehler beim Abrufen der Umstze: {0}",cause.getMessage()));
+    }
+    finally
+    {
+      // Falls wir wegen eines Fehlers abbrechen, brauchen wir den Rest nicht mehr
+      for (Future<Object[]> f:futures)
+        f.cancel(true);
+    }
+  }
+  
+  /**
+   * Erzeugt den Schluessel fuer eine Seite.
+   * @param window der Index des Zeitraumes.
+   * @param page die Seite.
+   * @return der Schluessel.
+   */
+  private static long key(int window, int page)
+  {
+    return ((long) window << 32) | page;
+  }
+  
+  /**
+   * Liefert den Index des Zeitraumes aus dem Schluessel.
+   * @param key der Schluessel.
+   * @return der Index des Zeitraumes.
+   */
+  private static int window(long key)
+  {
+    return (int) (key >>> 32);
+  }
+  
+  /**
+   * Liefert die Seite aus dem Schluessel.
+   * @param key der Schluessel.
+   * @return die Seite.
+   */
+  private static int page(long key)
+  {
+    return (int) key;
+  }
+  
+  /**
+   * Liefert einen Iterator, der die Transaktionen seitenweise abruft.
+   * Die Seiten werden erst beim Iterieren abgerufen. Damit muss der Aufrufer
+   * nicht den kompletten Zeitraum im Speicher halten.
+   * 
+   * @param auth  der Zugang.
+   * @param start Start-Datum fr die Abfrage.
+   * @param ctx   der Kontext der Synchronisierung.
+   * @return der Iterator.
+   * @throws ApplicationException wenn die Ausfhrung fehlschlug.
+   */
+  public TransactionIterator getTransactionPages(ApiAuth auth, Date start, TransportContext ctx) throws ApplicationException
+  {
+    if (start == null)
+      throw new ApplicationException("Kein Startdatum angegeben");
+    final List<Window> windows = this.createWindows(start);
+    ctx.fireWindows(windows.size());
+    return new TransactionIterator(this,auth,windows,ctx);
+  }
+  
+  /**
+   * Ruft eine einzelne Seite der Transaktionen ab.
+   * @param auth der Zugang.
+   * @param window der Zeitraum.
+   * @param page die Seite. Beginnt bei 1.
+   * @param ctx der Kontext der Synchronisierung.
+   * @return die Seite.
+   * @throws ApplicationException wenn die Ausfhrung fehlschlug.
+   * @throws ApiException wenn die Ausfhrung fehlschlug.
+   */
+  TransactionResult getTransactionPage(ApiAuth auth, Window window, int page, TransportContext ctx) throws ApplicationException, ApiException
+  {
+    final Map<String, String> params = new HashMap<>();
+    params.put("start_date", window.from.format(DateTimeFormatter.ofPattern(DF_ISO8601)));
+    params.put("end_date", window.to.format(DateTimeFormatter.ofPattern(DF_ISO8601)));
+    params.put("balance_affecting_records_only", "Y");
+    params.put("fields", settings.getString("transactions.fields",TRANSACTION_FIELDS));
+    params.put("page", Integer.toString(page));
+    params.put("page_size", Integer.toString(settings.getInt("transactions.pagesize",500)));
+    final HttpGet get = this.createGet(this.createUri("/v1/reporting/transactions", params));
+    return this.request(get, auth, TransactionResult.class, ctx);
+  }
+  
+  /**
+   * Zerlegt den Abfragezeitraum in Abschnitte von maximal 30 Tagen.
+   * Mehr erlaubt Paypal pro Abfrage nicht.
+   * @param start das Start-Datum.
+   * @return die Liste der Zeitraeume.
+   */
+  private List<Window> createWindows(Date start)
+  {
+    final List<Window> result = new ArrayList<>();
+    final ZonedDateTime now = ZonedDateTime.now();
+    ZonedDateTime startDate = start.toInstant().atZone(ZoneId.systemDefault());
+    do
+    {
+      ZonedDateTime endDate = startDate.plusDays(30);
+      if (endDate.isAfter(now))
+        endDate = now;
+      result.add(new Window(startDate,endDate));
       startDate = startDate.plusDays(30);
-    } while (startDate.isBefore(ZonedDateTime.now()));
+    } while (startDate.isBefore(now));
     return result;
   }
   
@@ -205,6 +635,19 @@ public class TransportService
    * @throws ApiException wenn die Ausfhrung fehlschlug.
    */
   public BalanceResult getBalances(ApiAuth auth) throws ApplicationException, ApiException
+  {
+    return this.getBalances(auth,new TransportContext());
+  }
+  
+  /**
+   * Liefert die aktuellen Salden.
+   * @param auth der Zugang.
+   * @param ctx der Kontext der Synchronisierung.
+   * @return die Salden.
+   * @throws ApplicationException wenn die Ausfhrung fehlschlug.
+   * @throws ApiException wenn die Ausfhrung fehlschlug.
+   */
+  public BalanceResult getBalances(ApiAuth auth, TransportContext ctx) throws ApplicationException, ApiException
   {
     final DateFormat df = new SimpleDateFormat(DF_ISO8601);
     final Map<String,String> params = new HashMap<>();
@@ -212,7 +655,163 @@ public class TransportService
     params.put("currency_code",HBCIProperties.CURRENCY_DEFAULT_DE); // Wir untersttzen ja eh nur EUR
     
     final HttpGet get = this.createGet(this.createUri("/v1/reporting/balances",params));
-    return this.request(get,auth,BalanceResult.class);
+    return this.request(get,auth,BalanceResult.class,ctx);
+  }
+  
+  /**
+   * Laesst die Signatur eines per Webhook empfangenen Ereignisses von Paypal pruefen.
+   * @param auth der Zugang.
+   * @param verification die Daten des Ereignisses.
+   * @param ctx der Kontext.
+   * @return true, wenn die Signatur gueltig ist.
+   * @throws ApplicationException wenn die Ausfhrung fehlschlug.
+   * @throws ApiException wenn die Ausfhrung fehlschlug.
+   */
+  public boolean verifyWebhook(ApiAuth auth, WebhookVerification verification, TransportContext ctx) throws ApplicationException, ApiException
+  {
+    final HttpPost post = new HttpPost(this.createUri("/v1/notifications/verify-webhook-signature",null));
+    try
+    {
+      post.setEntity(new StringEntity(this.mapper.writeValueAsString(verification),ContentType.APPLICATION_JSON));
+    }
+    catch (JsonProcessingException e)
+    {
+      Logger.error("unable to serialize webhook verification",e);
+      throw new ApplicationException(i18n.tr("Fehler beim Erstellen der Abfrage: {0}",e.getMessage()));
+    }
+    
+    final WebhookVerificationResult result = this.request(post,auth,WebhookVerificationResult.class,ctx);
+    Logger.info("webhook verification of transmission " + verification.transmission_id + ": " + (result != null ? result.verification_status : null));
+    return result != null && "SUCCESS".equals(result.verification_status);
+  }
+  
+  /**
+   * Liefert den SHA-256-Hash des Secrets als Hex-String.
+   * Damit landet das Secret selbst nicht im Schluessel des Token-Caches.
+   * @param secret das Secret.
+   * @return der Hash.
+   * @throws NoSuchAlgorithmException
+   */
+  private String hash(String secret) throws NoSuchAlgorithmException
+  {
+    final byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+    final StringBuilder sb = new StringBuilder();
+    for (byte b:digest)
+    {
+      sb.append(String.format("%02x",b));
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Asynchrone Variante von {@link #login(Konto)}.
+   * @param konto das Konto.
+   * @return Future mit dem Ergebnis der Authentifizierung.
+   */
+  public CompletableFuture<ApiAuth> loginAsync(Konto konto)
+  {
+    return this.async(this.asyncExecutor,() -> this.login(konto));
+  }
+  
+  /**
+   * Asynchrone Variante von {@link #getTransactions(ApiAuth, Date, int, TransportContext, TransactionHandler)}.
+   * Der Handler wird im Thread des Services aufgerufen. Der Abruf laeuft in einem eigenen,
+   * begrenzten Thread-Pool und belegt dort einen Thread, bis die letzte Seite verarbeitet ist.
+   * @param auth     der Zugang.
+   * @param start    Start-Datum fr die Abfrage.
+   * @param parallel maximale Anzahl gleichzeitiger Abfragen.
+   * @param ctx      der Kontext der Synchronisierung.
+   * @param handler  der Handler fuer die Seiten.
+   * @return Future, welches nach der letzten Seite abgeschlossen wird.
+   */
+  public CompletableFuture<Void> getTransactionsAsync(ApiAuth auth, Date start, int parallel, TransportContext ctx, TransactionHandler handler)
+  {
+    return this.async(this.streamExecutor,() -> {
+      this.getTransactions(auth,start,parallel,ctx,handler);
+      return null;
+    });
+  }
+  
+  /**
+   * Asynchrone Variante von {@link #getBalances(ApiAuth, TransportContext)}.
+   * @param auth der Zugang.
+   * @param ctx der Kontext der Synchronisierung.
+   * @return Future mit den Salden.
+   */
+  public CompletableFuture<BalanceResult> getBalancesAsync(ApiAuth auth, TransportContext ctx)
+  {
+    return this.async(this.asyncExecutor,() -> this.getBalances(auth,ctx));
+  }
+  
+  /**
+   * Wartet auf das Ergebnis eines asynchronen Aufrufs und entpackt ggf. aufgetretene Fehler.
+   * @param <T> der Typ des Ergebnisses.
+   * @param future der asynchrone Aufruf.
+   * @return das Ergebnis.
+   * @throws ApplicationException wenn die Ausfhrung fehlschlug.
+   * @throws ApiException wenn die Ausfhrung fehlschlug.
+   */
+  public static <T> T await(CompletableFuture<T> future) throws ApplicationException, ApiException
+  {
+    try
+    {
+      return future.join();
+    }
+    catch (CompletionException ce)
+    {
+      final Throwable cause = ce.getCause();
+      if (cause instanceof ApiException)
+        throw (ApiException) cause;
+      if (cause instanceof ApplicationException)
+        throw (ApplicationException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      Logger.error("async request failed",cause);
+      throw new ApplicationException(i18n.tr("Fehler beim Erstellen der Abfrage: {0}",cause != null ? cause.getMessage() : ce.getMessage()));
+    }
+  }
+  
+  /**
+   * Fuehrt den Aufruf im angegebenen Thread-Pool aus.
+   * Der Aufruf verwendet den synchronen Client mit seinem Connection-Pool und nicht den
+   * Async-Client von HttpClient 5, da letzterer zusaetzlich httpcore5-h2 benoetigt. Er belegt
+   * daher fuer seine gesamte Dauer einen Thread des Pools. Die Anzahl gleichzeitiger Aufrufe
+   * ist somit durch die Groesse des Pools begrenzt. Lang laufende Aufrufe gehoeren deshalb in
+   * einen anderen Pool als kurze, damit letztere nicht hinter ersteren warten.
+   * @param <T> der Typ des Ergebnisses.
+   * @param executor der Thread-Pool.
+   * @param call der Aufruf.
+   * @return Future mit dem Ergebnis.
+   */
+  private <T> CompletableFuture<T> async(ExecutorService executor, Call<T> call)
+  {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    executor.execute(() -> {
+      try
+      {
+        future.complete(call.call());
+      }
+      catch (Throwable t)
+      {
+        future.completeExceptionally(t);
+      }
+    });
+    return future;
+  }
+  
+  /**
+   * Interface fuer einen asynchron auszufuehrenden Aufruf.
+   * @param <T> der Typ des Ergebnisses.
+   */
+  private interface Call<T>
+  {
+    /**
+     * Fuehrt den Aufruf aus.
+     * @return das Ergebnis.
+     * @throws ApplicationException
+     * @throws ApiException
+     */
+    T call() throws ApplicationException, ApiException;
   }
   
   /**
@@ -281,6 +880,96 @@ public class TransportService
   
   /**
    * Fuehrt einen Request aus.
+   * GET-Requests werden bei HTTP-Status 429 und 5xx mit exponentiell wachsender
+   * Wartezeit wiederholt, solange das Budget des Requests und das der Synchronisierung reicht.
+   * @param <T> der Response-Typ.
+   * @param request der Request.
+   * @param auth die optionale Authentifizierung.
+   * @param type der Response-Typ.
+   * @param ctx der Kontext der Synchronisierung.
+   * @return die deserialisierten Antwort-Daten.
+   * @throws ApplicationException
+   * @throws ApiException
+   */
+  private <T> T request(HttpUriRequestBase request, ApiAuth auth, Class<T> type, TransportContext ctx) throws ApplicationException, ApiException
+  {
+    final boolean idempotent = "GET".equalsIgnoreCase(request.getMethod());
+    final int maxRetries = settings.getInt("http.retry.max",4);
+    int attempt = 0;
+    
+    final CancelToken token = ctx.getCancelToken();
+    
+    while (true)
+    {
+      ctx.acquireRequest();
+      
+      // Beim Abbruch wird der laufende Request sofort abgebrochen, statt auf die Antwort zu warten
+      token.register(request);
+      try
+      {
+        return this.request(request,auth,type);
+      }
+      catch (ApiException ae)
+      {
+        // Trotz Rate-Limiter zu viele Requests. Dann pausieren alle Konten der Client-ID
+        if (ae.httpStatus == 429)
+          ctx.blockRequests(this.getRetryDelay(attempt,ae.retryAfter));
+        
+        if (!idempotent || !isRetryable(ae.httpStatus) || attempt >= maxRetries)
+          throw ae;
+        
+        if (!ctx.acquireRetry())
+        {
+          Logger.warn("retry budget of synchronization exhausted, giving up");
+          throw ae;
+        }
+        
+        final long wait = this.getRetryDelay(attempt++,ae.retryAfter);
+        this.retries.incrementAndGet();
+        Logger.warn("got http status " + ae.httpStatus + ", retry " + attempt + "/" + maxRetries + " in " + wait + " ms");
+        
+        token.sleep(wait);
+        
+        // Der Request wird wiederverwendet. Header setzen wir beim naechsten Versuch neu
+        request.reset();
+      }
+      finally
+      {
+        token.unregister(request);
+      }
+    }
+  }
+  
+  /**
+   * Prueft, ob ein Request mit diesem HTTP-Status wiederholt werden darf.
+   * @param status der HTTP-Status.
+   * @return true, wenn er wiederholt werden darf.
+   */
+  private static boolean isRetryable(int status)
+  {
+    return status == 429 || (status >= 500 && status != 501 && status <= 599);
+  }
+  
+  /**
+   * Ermittelt die Wartezeit vor der naechsten Wiederholung.
+   * @param attempt die Nummer des Versuchs, beginnend bei 0.
+   * @param retryAfter vom Server per Retry-After gewuenschte Wartezeit in Millisekunden oder -1.
+   * @return die Wartezeit in Millisekunden.
+   */
+  private long getRetryDelay(int attempt, long retryAfter)
+  {
+    final long max = settings.getLong("http.retry.delay.max.ms",60000L);
+    if (retryAfter >= 0)
+      return Math.min(retryAfter,max);
+    
+    // Exponential Backoff mit Jitter: Zufaellig zwischen der halben und der vollen Wartezeit
+    final long base  = settings.getLong("http.retry.delay.ms",1000L);
+    final long delay = Math.min(max,base * (1L << Math.min(attempt,16)));
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+  
+  /**
+   * Fuehrt einen Request einmalig aus.
    * @param <T> der Response-Typ.
    * @param request der Request.
    * @param auth die optionale Authentifizierung.
@@ -296,36 +985,36 @@ public class TransportService
       Logger.info("executing request to: " + request.getUri());
       
       if (auth != null)
-        request.addHeader(HttpHeaders.AUTHORIZATION,"Bearer " + auth.access_token);
+        request.setHeader(HttpHeaders.AUTHORIZATION,"Bearer " + auth.access_token);
       
       request.setHeader(HttpHeaders.CONTENT_TYPE,"application/json");
       request.setHeader(HttpHeaders.ACCEPT,"application/json");
       request.setHeader(HttpHeaders.ACCEPT_LANGUAGE,"de_DE");
+      if (settings.getBoolean("http.compression",true))
+        request.setHeader(HttpHeaders.ACCEPT_ENCODING,"gzip, deflate");
       
       final Object result = this.client.execute(request, response -> {
         final int status = response.getCode();
 
-        final String json = this.read(response.getEntity().getContent());
-        
-        if (status > 299)
+        // Token wird vom Server nicht mehr akzeptiert. Aus dem Cache werfen,
+        // damit beim naechsten Mal ein neuer geholt wird.
+        if (status == 401 && auth != null)
+          this.tokens.invalidate(auth);
+
+        final HttpEntity entity = response.getEntity();
+        final String encoding = StringUtils.trimToEmpty(entity.getContentEncoding()).toLowerCase();
+        final CountingInputStream wire = new CountingInputStream(entity.getContent());
+        final CountingInputStream is = new CountingInputStream(this.decode(wire,encoding));
+        try
+        {
+          return this.parse(response,is,type);
+        }
+        finally
         {
-          String msg = status + ": " + response.getReasonPhrase();
-          Logger.error("got http status: " + msg);
-          Logger.error("json response: " + json);
-          
-          // Checken, ob wir den Fehler lesen koennen
-          try
-          {
-            ApiException error = this.mapper.readValue(json, ApiException.class);
-            error.httpStatus = status;
-            error.httpMessage = response.getReasonPhrase();
-            return error;
-          }
-          catch (Exception e)
-          {
-          }
+          this.bytesReceived.addAndGet(wire.getCount());
+          this.bytesDecoded.addAndGet(is.getCount());
+          Logger.info("received " + wire.getCount() + " bytes" + (encoding.isEmpty() ? "" : " (" + encoding + ", " + is.getCount() + " bytes decoded)"));
         }
-        return this.mapper.readValue(json, type);
       });
 
       if (result instanceof ApiException)
@@ -350,10 +1039,116 @@ public class TransportService
     }
     catch (Exception e)
     {
+      // Der Request wurde wegen des Abbruchs der Synchronisierung abgebrochen
+      if (request.isCancelled())
+        throw new OperationCanceledException("request to " + request.getRequestUri() + " cancelled");
+      
       Logger.error("unable to create GET request",e);
       throw new ApplicationException(i18n.tr("Fehler beim Erstellen der Abfrage: {0}",e.getMessage()));
     }
   }
+  
+  /**
+   * Dekomprimiert die Antwort entsprechend dem Content-Encoding.
+   * @param is der Stream.
+   * @param encoding das Content-Encoding in Kleinbuchstaben.
+   * @return der dekomprimierte Stream.
+   * @throws IOException
+   */
+  private InputStream decode(InputStream is, String encoding) throws IOException
+  {
+    if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+      return new GZIPInputStream(is);
+    if (encoding.equals("deflate"))
+      return new DeflateInputStream(is);
+    return is;
+  }
+  
+  /**
+   * Deserialisiert die Antwort.
+   * @param response die Antwort.
+   * @param is der bereits dekomprimierte Stream.
+   * @param type der Response-Typ.
+   * @return die deserialisierte Antwort oder eine {@link ApiException}.
+   * @throws IOException
+   */
+  private Object parse(ClassicHttpResponse response, InputStream is, Class<?> type) throws IOException
+  {
+    final int status = response.getCode();
+    if (status > 299)
+    {
+      // Fehler-Antworten sind klein. Die lesen wir komplett, damit wir sie loggen koennen
+      final String json = this.read(is);
+      String msg = status + ": " + response.getReasonPhrase();
+      Logger.error("got http status: " + msg);
+      Logger.error("json response: " + json);
+      
+      // Checken, ob wir den Fehler lesen koennen
+      ApiException error = null;
+      try
+      {
+        error = this.getReader(ApiException.class).readValue(json);
+      }
+      catch (Exception e)
+      {
+        // Kein JSON, z.B. eine HTML-Fehlerseite eines Proxys
+        error = new ApiException();
+        error.message = msg;
+      }
+      error.httpStatus = status;
+      error.httpMessage = response.getReasonPhrase();
+      error.retryAfter = this.getRetryAfter(response);
+      return error;
+    }
+    
+    // Direkt aus dem Stream parsen, ohne die Antwort vorher komplett in den Speicher zu laden
+    if (!Logger.isLogging(Level.DEBUG))
+      return this.getReader(type).readValue(is);
+    
+    final CaptureInputStream cis = new CaptureInputStream(is,settings.getInt("debug.response.maxbytes",64 * 1024));
+    try
+    {
+      return this.getReader(type).readValue(cis);
+    }
+    finally
+    {
+      Logger.debug("response: " + cis.getCaptured());
+    }
+  }
+
+  /**
+   * Liefert die im Header Retry-After angegebene Wartezeit.
+   * @param response die Antwort.
+   * @return die Wartezeit in Millisekunden oder -1, wenn keine angegeben ist.
+   */
+  private long getRetryAfter(ClassicHttpResponse response)
+  {
+    final Header h = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+    final String value = h != null ? StringUtils.trimToNull(h.getValue()) : null;
+    if (value == null)
+      return -1;
+    
+    try
+    {
+      return Math.max(0L,Long.parseLong(value) * 1000L);
+    }
+    catch (NumberFormatException e)
+    {
+      // Dann ist es ein HTTP-Datum
+      final Instant date = DateUtils.parseStandardDate(value);
+      return date != null ? Math.max(0L,date.toEpochMilli() - System.currentTimeMillis()) : -1;
+    }
+  }
+  
+  /**
+   * Liefert den gecachten Reader fuer den Typ.
+   * @param type der Typ.
+   * @return der Reader.
+   */
+  private ObjectReader getReader(Class<?> type)
+  {
+    return this.readers.computeIfAbsent(type,t -> this.mapper.readerFor(t));
+  }
 
   /**
    * Liest die JSON-Daten aus dem Stream und loggt sie.
@@ -371,6 +1166,35 @@ public class TransportService
     return s;
   }
   
+  /**
+   * Ein Abfragezeitraum.
+   */
+  static class Window
+  {
+    private final ZonedDateTime from;
+    private final ZonedDateTime to;
+    
+    /**
+     * ct.
+     * @param from Beginn des Zeitraumes.
+     * @param to Ende des Zeitraumes.
+     */
+    private Window(ZonedDateTime from, ZonedDateTime to)
+    {
+      this.from = from;
+      this.to   = to;
+    }
+    
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+      return this.from.toLocalDate() + " - " + this.to.toLocalDate();
+    }
+  }
+  
   /**
    * Liefert den aktuell konfigurierten API-Endpunkt.
    * @return der aktuell konfigurierte API-Endpunkt.